@@ -0,0 +1,108 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tags whole corpora in parallel against one shared HMMModel. Its tables never change after
+ * training, so sharing it is safe; its metrics sink and unknown word model can still be set
+ * while tagging, and then apply to every worker.
+ * Sentences are spread over a fork-join pool; every worker thread decodes with its own
+ * ViterbiDecoder, and results always come back in input order.
+ */
+public class BatchTagger {
+
+    private final HMMModel model;
+    private final ForkJoinPool pool;
+
+    /**
+     * Tagger that runs on the common fork-join pool (one worker per core)
+     * @param model
+     */
+    public BatchTagger(HMMModel model) {
+        this(model, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param model
+     * @param pool pool the batch work is submitted to
+     */
+    public BatchTagger(HMMModel model, ForkJoinPool pool) {
+        this.model = model;
+        this.pool = pool;
+    }
+
+    /**
+     * Tags a single space separated sentence
+     * @param sentence
+     * @return one tag per word
+     */
+    public String[] tag(String sentence) {
+        Tokenizer words = Tokenizer.forThread();
+        int length = words.tokenize(sentence);
+        int[] path = new int[length];
+        model.decoder().decode(words, path);
+
+        String[] tags = new String[length];
+        for (int i = 0; i < length; i++) tags[i] = model.tagName(path[i]);
+        return tags;
+    }
+
+    /**
+     * Tags every sentence in parallel
+     * @param sentences
+     * @return tags of each sentence, in the same order as the input
+     */
+    public List<String[]> tagAll(List<String> sentences) {
+        return pool.submit(() -> sentences.parallelStream().map(this::tag).collect(Collectors.toList())).join();
+    }
+
+    /**
+     * Tags a stream of sentences in parallel. The result is collected inside the tagger's pool,
+     * so the whole stream is consumed before this returns.
+     * @param sentences
+     * @return tags of each sentence, in the same order as the input
+     */
+    public List<String[]> tagAll(Stream<String> sentences) {
+        return pool.submit(() -> sentences.parallel().map(this::tag).collect(Collectors.toList())).join();
+    }
+
+    /**
+     * Batch tagging speed over a whole file
+     * @param sentencesFile
+     * @throws IOException
+     */
+    public void throughputTest(String sentencesFile) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(sentencesFile));
+        String line;
+        long tokens = 0;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+            tokens += Tokenizer.forThread().tokenize(line);
+        }
+        reader.close();
+
+        double tokensPerSecond = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            long startTime = System.nanoTime();
+            tagAll(lines);
+            tokensPerSecond = tokens / ((System.nanoTime() - startTime) / 1e9);
+        }
+        System.out.println("Batch throughput on " + pool.getParallelism() + " threads: "
+                + Math.round(tokensPerSecond) + " tokens/sec");
+    }
+
+    public static void main(String[] args) throws Exception {
+        POS brown = new POS();
+        brown.loadTrainingData("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+        brown.OTMaps();
+
+        BatchTagger tagger = new BatchTagger(brown.getModel());
+        tagger.throughputTest("PS5/brown-test-sentences.txt");
+    }
+}
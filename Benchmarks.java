@@ -0,0 +1,202 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Fixed-configuration benchmark suite for the three taggers: training (POS.OTMaps, StreamingTrainer,
+ * markov.train), decoding (POS.viterbi, markov.predict, ViterbiDecoder) by sentence length bucket,
+ * and file loading (training file reads, ModelIO). For every benchmark it prints throughput as the
+ * mean and standard deviation over PASSES measured passes, latency percentiles and bytes allocated
+ * per operation, so a regression shows up as a number. Every result is folded into a checksum that
+ * is printed with it, so the JIT cannot drop work whose result goes unused.
+ *
+ * This is a quick approximation of the JMH suite in bench/ that needs no build step: a plain
+ * System.nanoTime loop in one JVM, with no forks and a checksum instead of blackholes.
+ *
+ * Run: java Benchmarks [data directory, default PS5/]
+ * Every run uses the same warm-up and measurement counts and the same inputs.
+ */
+public class Benchmarks {
+
+    private static final int[] LENGTHS = {5, 20, 60, 200}; // sentence length buckets, in tokens
+    private static final int DECODE_TOKENS = 400000;         // tokens decoded for warm-up, and again measured
+    private static final int TRAIN_WARMUP = 2;               // training runs before measuring
+    private static final int TRAIN_MEASURE = 5;              // training runs measured per pass
+    private static final int PASSES = 5;                     // measured passes per benchmark
+
+    /**
+     * One benchmarked operation
+     */
+    private interface Op {
+        /**
+         * @param i call number
+         * @return a value computed from the operation's result, added to the checksum
+         */
+        long run(int i) throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Runs an operation, timing every call, and prints one result line
+     * @param name
+     * @param warmup calls before measuring
+     * @param measure calls measured per pass
+     * @param op operation, called with the call number
+     * @throws Exception
+     */
+    private static void bench(String name, int warmup, int measure, Op op) throws Exception {
+        long checksum = 0;
+        for (int i = 0; i < warmup; i++) checksum = 31 * checksum + op.run(i);
+
+        long[] latencies = new long[PASSES * measure];
+        double[] throughputs = new double[PASSES];
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        for (int pass = 0; pass < PASSES; pass++) {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < measure; i++) {
+                long opStart = System.nanoTime();
+                checksum = 31 * checksum + op.run(warmup + i);
+                latencies[pass * measure + i] = System.nanoTime() - opStart;
+            }
+            throughputs[pass] = measure / ((System.nanoTime() - startTime) / 1e9);
+        }
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        double mean = 0, variance = 0;
+        for (double throughput : throughputs) mean += throughput / PASSES;
+        for (double throughput : throughputs) variance += (throughput - mean) * (throughput - mean) / (PASSES - 1);
+        Arrays.sort(latencies);
+        System.out.printf("%-34s %12.1f ops/s +- %4.1f%%   p50 %9s  p90 %9s  p99 %9s  p99.9 %9s   %10d B/op   checksum %016x%n",
+                name, mean, 100 * Math.sqrt(variance) / mean,
+                micros(percentile(latencies, 0.50)), micros(percentile(latencies, 0.90)),
+                micros(percentile(latencies, 0.99)), micros(percentile(latencies, 0.999)),
+                allocated / latencies.length, checksum);
+    }
+
+    /**
+     * @param model
+     * @return a value that depends on the model's tag count and emission count
+     */
+    private static long digest(HMMModel model) {
+        int[] offsets = model.emissionOffsetTable();
+        return 31L * model.numTags() + offsets[offsets.length - 1];
+    }
+
+    /**
+     * @param path tag ids
+     * @param length number of ids written
+     * @return sum of the tag ids, weighted by position
+     */
+    private static long digest(int[] path, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i++) sum = 31 * sum + path[i];
+        return sum;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1fus", nanos / 1e3);
+    }
+
+    /**
+     * Cuts the words of a file into sentences of exactly length words
+     * @param sentencesFile
+     * @param length
+     * @return sentences, lower case
+     * @throws IOException
+     */
+    static ArrayList<String[]> bucket(String sentencesFile, int length) throws IOException {
+        ArrayList<String[]> sentences = new ArrayList<>();
+        String[] sentence = new String[length];
+        int filled = 0;
+        Tokenizer tokens = new Tokenizer();
+        BufferedReader reader = new BufferedReader(new FileReader(sentencesFile));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int count = tokens.tokenize(line);
+            for (int i = 0; i < count; i++) {
+                sentence[filled++] = tokens.token(i).toLowerCase();
+                if (filled == length) {
+                    sentences.add(sentence);
+                    sentence = new String[length];
+                    filled = 0;
+                }
+            }
+        }
+        reader.close();
+        return sentences;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String data = args.length > 0 ? args[0] : "PS5/";
+        String[] sets = {"simple", "brown"};
+
+        for (String set : sets) {
+            String trainSentences = data + set + "-train-sentences.txt";
+            String trainTags = data + set + "-train-tags.txt";
+            String testSentences = data + set + "-test-sentences.txt";
+            System.out.println("== " + set + " ==");
+
+            // training and file loading
+            bench(set + " POS.loadTrainingData", TRAIN_WARMUP, TRAIN_MEASURE, i -> {
+                POS reader = new POS();
+                reader.loadTrainingData(trainSentences, trainTags);
+                return reader.sentenceCount();
+            });
+            POS loaded = new POS();
+            loaded.loadTrainingData(trainSentences, trainTags);
+            bench(set + " POS.OTMaps", TRAIN_WARMUP, TRAIN_MEASURE, i -> {
+                loaded.OTMaps();
+                return digest(loaded.getModel());
+            });
+            bench(set + " StreamingTrainer.count", TRAIN_WARMUP, TRAIN_MEASURE, i -> {
+                HMMCounts counts = new StreamingTrainer().count(trainSentences, trainTags);
+                return 31 * counts.tokens() + counts.numWords();
+            });
+            bench(set + " markov.train", TRAIN_WARMUP, TRAIN_MEASURE, i -> {
+                markov trained = new markov();
+                trained.train(trainSentences, trainTags);
+                return digest(trained.model);
+            });
+
+            HMMModel model = new StreamingTrainer().train(trainSentences, trainTags, -100);
+            String modelFile = set + "-bench.model";
+            ModelIO.write(model, modelFile);
+            bench(set + " ModelIO.read", TRAIN_WARMUP, TRAIN_MEASURE, i -> digest(ModelIO.read(modelFile)));
+            new File(modelFile).delete();
+
+            // decoding by sentence length
+            POS pos = new POS();
+            pos.train(trainSentences, trainTags);
+            markov hmm = new markov();
+            hmm.train(trainSentences, trainTags);
+            ViterbiDecoder decoder = model.decoder();
+            int[] path = new int[LENGTHS[LENGTHS.length - 1]];
+
+            for (int length : LENGTHS) {
+                ArrayList<String[]> sentences = bucket(testSentences, length);
+                if (sentences.isEmpty()) continue;
+                int ops = DECODE_TOKENS / length;
+                ArrayList<String> lines = new ArrayList<>();
+                for (String[] sentence : sentences) lines.add("# " + String.join(" ", sentence));
+
+                bench(set + " POS.viterbi len " + length, ops, ops,
+                        i -> pos.viterbi(lines.get(i % lines.size())).hashCode());
+                bench(set + " markov.predict len " + length, ops, ops,
+                        i -> hmm.predict(sentences.get(i % sentences.size())).hashCode());
+                bench(set + " ViterbiDecoder len " + length, ops, ops,
+                        i -> digest(path, decoder.decode(sentences.get(i % sentences.size()), path)));
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Size bounded cache with least recently used or least frequently used eviction.
+ * Counts hits, misses and evictions. All methods are synchronized, so one cache can be
+ * shared by every tagging thread.
+ * @param <K>
+ * @param <V>
+ */
+public class BoundedCache<K, V> {
+
+    public enum Policy { LRU, LFU }
+
+    private final int maxSize;
+    private final Policy policy;
+    private final LinkedHashMap<K, V> values;                    // access ordered, so LRU order is iteration order
+    private final HashMap<K, Integer> frequencies;               // LFU: key -> number of uses
+    private final TreeMap<Integer, LinkedHashSet<K>> byFrequency; // LFU: uses -> keys, oldest first
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize entries kept before evicting
+     * @param policy which entry to evict when full
+     */
+    public BoundedCache(int maxSize, Policy policy) {
+        this.maxSize = maxSize;
+        this.policy = policy;
+        this.values = new LinkedHashMap<>(16, 0.75f, true);
+        this.frequencies = new HashMap<>();
+        this.byFrequency = new TreeMap<>();
+    }
+
+    /**
+     * @param key
+     * @return cached value, or null on a miss
+     */
+    public synchronized V get(K key) {
+        V value = values.get(key);
+        if (value == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (policy == Policy.LFU) touch(key);
+        return value;
+    }
+
+    /**
+     * Adds or replaces an entry, evicting one first if the cache is full
+     * @param key
+     * @param value
+     */
+    public synchronized void put(K key, V value) {
+        if (maxSize <= 0) return;
+        if (values.containsKey(key)) {
+            values.put(key, value);
+            return;
+        }
+        if (values.size() >= maxSize) evict();
+        values.put(key, value);
+        if (policy == Policy.LFU) {
+            frequencies.put(key, 1);
+            byFrequency.computeIfAbsent(1, f -> new LinkedHashSet<>()).add(key);
+        }
+    }
+
+    /**
+     * Moves a key up one frequency bucket
+     * @param key
+     */
+    private void touch(K key) {
+        int frequency = frequencies.get(key);
+        removeFromBucket(key, frequency);
+        frequencies.put(key, frequency + 1);
+        byFrequency.computeIfAbsent(frequency + 1, f -> new LinkedHashSet<>()).add(key);
+    }
+
+    private void removeFromBucket(K key, int frequency) {
+        LinkedHashSet<K> bucket = byFrequency.get(frequency);
+        bucket.remove(key);
+        if (bucket.isEmpty()) byFrequency.remove(frequency);
+    }
+
+    private void evict() {
+        K victim;
+        if (policy == Policy.LRU) {
+            victim = values.keySet().iterator().next();
+        } else {
+            Map.Entry<Integer, LinkedHashSet<K>> rarest = byFrequency.firstEntry();
+            Iterator<K> oldest = rarest.getValue().iterator();
+            victim = oldest.next();
+            removeFromBucket(victim, rarest.getKey());
+            frequencies.remove(victim);
+        }
+        values.remove(victim);
+        evictions++;
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size " + values.size() + "/" + maxSize + " (" + policy + "), hits " + hits
+                + ", misses " + misses + ", evictions " + evictions;
+    }
+}
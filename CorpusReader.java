@@ -0,0 +1,365 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a corpus file line by line straight from a memory mapping, without a String per line or
+ * per token. Lines are found by scanning the mapped UTF-8 bytes for '\n'. Each line is decoded into
+ * one reused char buffer, with a byte-to-char copy while it is ASCII, and tokenized in place, so
+ * tokens go from the mapping to a vocabulary lookup with no garbage.
+ *
+ * A reader covers a byte range of the file, the whole file by default. Ranges for parallel
+ * consumers come from split() for a single file. Paired sentence and tag files split by line
+ * count instead: skipLines() steps two readers through the same number of lines and position()
+ * gives the matching offsets. Files of any size are mapped a window at a time.
+ * Not thread-safe; readers of the same file may share a FileChannel.
+ */
+public class CorpusReader implements Closeable {
+
+    private static final int WINDOW = 1 << 28; // bytes mapped at a time; no line may be longer
+
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final long end;             // end of the range
+    private MappedByteBuffer window;    // mapping of [windowStart, windowStart + window.capacity())
+    private long windowStart;
+    private long position;              // file offset of the next line
+    private long lines;                 // lines read or skipped so far
+    private byte[] bytes;               // current line copied out of the mapping
+    private char[] chars;               // decoded current line
+    private final Line text;            // view of chars handed to the tokenizer
+    private CharsetDecoder decoder;     // for lines that are not ASCII, created on first use
+
+    /**
+     * Reader over a whole file
+     * @param file
+     * @throws IOException
+     */
+    public CorpusReader(String file) throws IOException {
+        this(open(file), true, 0, -1);
+    }
+
+    /**
+     * Reader over a range of a file shared with other readers
+     * @param channel open on the file, not closed by this reader
+     * @param start offset of the first line
+     * @param end end of the range, at a line boundary or the end of the file
+     * @throws IOException
+     */
+    public CorpusReader(FileChannel channel, long start, long end) throws IOException {
+        this(channel, false, start, end);
+    }
+
+    private CorpusReader(FileChannel channel, boolean ownsChannel, long start, long end) throws IOException {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.end = end < 0 ? channel.size() : Math.min(end, channel.size());
+        this.position = start;
+        this.windowStart = start;
+        this.bytes = new byte[256];
+        this.chars = new char[256];
+        this.text = new Line();
+    }
+
+    /**
+     * Opens a file for readers that share it
+     * @param file
+     * @return channel, to be closed by the caller
+     * @throws IOException
+     */
+    public static FileChannel open(String file) throws IOException {
+        return FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+    }
+
+    /**
+     * Reads the next line into a tokenizer; its text stays valid until the next call
+     * @param tokens
+     * @return number of tokens, or -1 at the end of the range
+     * @throws IOException
+     */
+    public int next(Tokenizer tokens) throws IOException {
+        long lineEnd = findLineEnd();
+        if (lineEnd < 0) return -1;
+        int from = (int) (position - windowStart);
+        int to = (int) (lineEnd - windowStart);
+        if (to > from && window.get(to - 1) == '\r') to--;
+        decode(from, to);
+        position = Math.min(lineEnd + 1, end);
+        lines++;
+        return tokens.tokenize(text);
+    }
+
+    /**
+     * Steps over lines without decoding them
+     * @param count lines to skip
+     * @return lines skipped, fewer than count at the end of the range
+     * @throws IOException
+     */
+    public long skipLines(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long lineEnd = findLineEnd();
+            if (lineEnd < 0) break;
+            position = Math.min(lineEnd + 1, end);
+            skipped++;
+        }
+        lines += skipped;
+        return skipped;
+    }
+
+    /**
+     * @return file offset of the next line
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * @return lines read or skipped so far
+     */
+    public long lines() {
+        return lines;
+    }
+
+    /**
+     * @return file offset of the '\n' ending the next line, or of the end of the range if it has none;
+     *         -1 if there are no more lines. The line is mapped when this returns.
+     */
+    private long findLineEnd() throws IOException {
+        if (position >= end) return -1;
+        if (window == null || position >= windowStart + window.capacity()) map(position);
+        while (true) {
+            int limit = (int) (Math.min(end, windowStart + window.capacity()) - windowStart);
+            for (int i = (int) (position - windowStart); i < limit; i++) {
+                if (window.get(i) == '\n') return windowStart + i;
+            }
+            if (windowStart + limit >= end) return end;
+            // the line runs past the window: remap from its start
+            if (position == windowStart) throw new IOException("Line at offset " + position + " is longer than " + WINDOW + " bytes");
+            map(position);
+        }
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, end - start));
+    }
+
+    /**
+     * Decodes window bytes [from, to) into chars
+     */
+    private void decode(int from, int to) {
+        int length = to - from;
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        if (length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+        window.get(from, bytes, 0, length);
+        int n = 0;
+        while (n < length && bytes[n] >= 0) {
+            chars[n] = (char) bytes[n];
+            n++;
+        }
+        if (n < length) {
+            // not ASCII from here on: UTF-8 never needs more chars than bytes
+            if (decoder == null) {
+                decoder = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            ByteBuffer in = window.duplicate();
+            in.limit(to).position(from + n);
+            CharBuffer out = CharBuffer.wrap(chars, n, length - n);
+            decoder.reset();
+            decoder.decode(in, out, true);
+            decoder.flush(out);
+            n = out.position();
+        }
+        text.length = n;
+    }
+
+    /**
+     * The decoded line as a CharSequence; plain array reads, where CharBuffer checks and offsets
+     * every charAt
+     */
+    private final class Line implements CharSequence {
+        int length;
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    /**
+     * Splits a file into ranges that start at line boundaries, for consumers that each read one
+     * @param file
+     * @param parts ranges wanted; fewer come back if the file has fewer lines
+     * @return offsets: range i is [offsets[i], offsets[i + 1])
+     * @throws IOException
+     */
+    public static long[] split(String file, int parts) throws IOException {
+        FileChannel channel = open(file);
+        try {
+            long size = channel.size();
+            long[] offsets = new long[parts + 1];
+            int count = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 12);
+            for (int i = 1; i < parts; i++) {
+                // first line starting at or after an even share of the bytes
+                long offset = Math.max(offsets[count], size * i / parts - 1);
+                long boundary = size;
+                while (boundary == size && offset < size) {
+                    buffer.clear();
+                    int read = channel.read(buffer, offset);
+                    if (read <= 0) break;
+                    for (int b = 0; b < read; b++) {
+                        if (buffer.get(b) == '\n') {
+                            boundary = offset + b + 1;
+                            break;
+                        }
+                    }
+                    offset += read;
+                }
+                if (boundary > offsets[count] && boundary < size) offsets[++count] = boundary;
+            }
+            offsets[++count] = size;
+            return Arrays.copyOf(offsets, count + 1);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (ownsChannel) channel.close();
+    }
+
+    /**
+     * Collects the total and count of every GC
+     * @return {collections, milliseconds}
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += gc.getCollectionCount();
+            totals[1] += gc.getCollectionTime();
+        }
+        return totals;
+    }
+
+    /**
+     * Reads a file pair through BufferedReader lines, looking every word up in the vocabulary
+     * @return tokens read
+     */
+    private static long readLines(String sentencesFile, String tagsFile, Vocabulary vocabulary,
+                                  Tokenizer words, Tokenizer tags) throws IOException {
+        long tokens = 0;
+        BufferedReader sentences = new BufferedReader(new FileReader(sentencesFile));
+        BufferedReader tagLines = new BufferedReader(new FileReader(tagsFile));
+        String line, tagLine;
+        while ((line = sentences.readLine()) != null && (tagLine = tagLines.readLine()) != null) {
+            int count = words.tokenize(line);
+            for (int i = 0; i < count; i++) vocabulary.add(line, words.start(i), words.end(i), true);
+            tokens += tags.tokenize(tagLine);
+        }
+        sentences.close();
+        tagLines.close();
+        return tokens;
+    }
+
+    /**
+     * Reads a file pair through CorpusReader, looking every word up in the vocabulary
+     * @return tokens read
+     */
+    private static long readMapped(String sentencesFile, String tagsFile, Vocabulary vocabulary,
+                                   Tokenizer words, Tokenizer tags) throws IOException {
+        long tokens = 0;
+        CorpusReader sentences = new CorpusReader(sentencesFile);
+        CorpusReader tagLines = new CorpusReader(tagsFile);
+        int count;
+        while ((count = sentences.next(words)) >= 0 && tagLines.next(tags) >= 0) {
+            for (int i = 0; i < count; i++) words.intern(vocabulary, i, true);
+            tokens += tags.count();
+        }
+        sentences.close();
+        tagLines.close();
+        return tokens;
+    }
+
+    /**
+     * java CorpusReader [sentences file] [tags file]
+     * Reads a sentence/tag file pair, looking every token up in a vocabulary, with BufferedReader
+     * lines and with CorpusReader, and prints the speed, allocation and GC work of each, measured
+     * on the last of 20 alternating passes. Also checks that split() ranges cover the sentence
+     * file line for line.
+     */
+    public static void main(String[] args) throws Exception {
+        String sentencesFile = args.length > 0 ? args[0] : "PS5/brown-train-sentences.txt";
+        String tagsFile = args.length > 1 ? args[1] : "PS5/brown-train-tags.txt";
+        double megabytes = (Files.size(Paths.get(sentencesFile)) + Files.size(Paths.get(tagsFile))) / 1e6;
+        Vocabulary vocabulary = new Vocabulary();
+        Tokenizer words = new Tokenizer(), tags = new Tokenizer();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        int passes = 20;
+        for (int pass = 0; pass < passes; pass++) {
+            for (int reader = 0; reader < 2; reader++) {
+                long[] gcBefore = gcTotals();
+                long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+                long startTime = System.nanoTime();
+                long tokens = reader == 0
+                        ? readLines(sentencesFile, tagsFile, vocabulary, words, tags)
+                        : readMapped(sentencesFile, tagsFile, vocabulary, words, tags);
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+                long[] gcAfter = gcTotals();
+                if (pass == passes - 1) {
+                    System.out.printf("%-14s %8.1f MB/s  %10.0f tokens/s  %8.1f MB allocated  %d GCs, %d ms%n",
+                            reader == 0 ? "BufferedReader" : "CorpusReader", megabytes / seconds, tokens / seconds,
+                            allocated / 1e6, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+                }
+            }
+        }
+
+        long[] offsets = split(sentencesFile, 8);
+        FileChannel channel = open(sentencesFile);
+        long splitLines = 0;
+        for (int i = 0; i + 1 < offsets.length; i++) {
+            splitLines += new CorpusReader(channel, offsets[i], offsets[i + 1]).skipLines(Long.MAX_VALUE);
+        }
+        channel.close();
+        CorpusReader whole = new CorpusReader(sentencesFile);
+        long wholeLines = whole.skipLines(Long.MAX_VALUE);
+        whole.close();
+        System.out.println((offsets.length - 1) + " ranges hold " + splitLines + " lines, the whole file " + wholeLines);
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * k-fold cross-validation of a grid of tagger settings: unseen word penalty, add-k smoothing,
+ * beam width and lower casing. Sentence i of the corpus belongs to fold i mod k.
+ *
+ * The corpus is counted once, case-sensitively, into one HMMCounts per fold; the training counts
+ * of a fold are the merge of the other folds' counts, and their lower-cased form comes from
+ * foldCase(). Each (fold, case, smoothing) pair is normalized into a model once, and penalties are
+ * applied with withUnseenPenalty(), which shares every table. Only decoding the held-out folds is
+ * repeated per setting, and every (fold, setting) evaluation runs as its own task on the pool.
+ * Held-out words are looked up once per fold and case and decoded by word id.
+ *
+ * Unseen words score the flat penalty being tuned; no unknown word model is trained.
+ */
+public class CrossValidator {
+
+    /**
+     * One point of the grid
+     */
+    public static class Config {
+        final double unseenPenalty; // score for a word never observed with a tag
+        final double smoothing;     // add-k constant, 0 for none
+        final int beamWidth;        // states kept per column, 0 for no limit
+        final boolean lowerCase;    // count and look words up in lower case
+
+        public Config(double unseenPenalty, double smoothing, int beamWidth, boolean lowerCase) {
+            this.unseenPenalty = unseenPenalty;
+            this.smoothing = smoothing;
+            this.beamWidth = beamWidth;
+            this.lowerCase = lowerCase;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("penalty %g smoothing %g beam %d %s", unseenPenalty, smoothing, beamWidth,
+                    lowerCase ? "lower case" : "cased");
+        }
+    }
+
+    /**
+     * Every combination of the given values
+     * @param penalties unseen word penalties
+     * @param smoothings add-k constants
+     * @param beamWidths beam widths, 0 for exact decoding
+     * @param lowerCases lower casing settings
+     * @return grid, penalties varying fastest
+     */
+    public static List<Config> grid(double[] penalties, double[] smoothings, int[] beamWidths, boolean[] lowerCases) {
+        ArrayList<Config> grid = new ArrayList<>();
+        for (boolean lowerCase : lowerCases) {
+            for (int beamWidth : beamWidths) {
+                for (double smoothing : smoothings) {
+                    for (double penalty : penalties) grid.add(new Config(penalty, smoothing, beamWidth, lowerCase));
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Scores of one config: per fold accuracy, and known and unseen words pooled over the folds
+     */
+    public static class Result {
+        final Config config;
+        final double[] foldAccuracy;
+        long known, knownCorrect, unseen, unseenCorrect, decodeNanos;
+
+        Result(Config config, int folds) {
+            this.config = config;
+            this.foldAccuracy = new double[folds];
+        }
+
+        void add(int fold, long[] score) {
+            known += score[0];
+            knownCorrect += score[1];
+            unseen += score[2];
+            unseenCorrect += score[3];
+            decodeNanos += score[4];
+            foldAccuracy[fold] = (double) (score[1] + score[3]) / Math.max(1, score[0] + score[2]);
+        }
+
+        /**
+         * @return accuracy averaged over the folds
+         */
+        public double accuracy() {
+            double sum = 0;
+            for (double a : foldAccuracy) sum += a;
+            return sum / foldAccuracy.length;
+        }
+
+        /**
+         * @return sample standard deviation of the fold accuracies
+         */
+        public double accuracyDeviation() {
+            double mean = accuracy(), sum = 0;
+            for (double a : foldAccuracy) sum += (a - mean) * (a - mean);
+            return foldAccuracy.length < 2 ? 0 : Math.sqrt(sum / (foldAccuracy.length - 1));
+        }
+
+        public double knownAccuracy() {
+            return known == 0 ? 0 : (double) knownCorrect / known;
+        }
+
+        public double unseenAccuracy() {
+            return unseen == 0 ? 0 : (double) unseenCorrect / unseen;
+        }
+
+        /**
+         * @return tokens per second of decoder time on one thread
+         */
+        public double tokensPerDecodeSecond() {
+            return decodeNanos == 0 ? 0 : (known + unseen) / (decodeNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%9g %9g %4d %-5s %7.2f%% %5.2f %7.2f%% %7.2f%% %9.0f",
+                    config.unseenPenalty, config.smoothing, config.beamWidth, config.lowerCase ? "yes" : "no",
+                    100 * accuracy(), 100 * accuracyDeviation(), 100 * knownAccuracy(), 100 * unseenAccuracy(),
+                    tokensPerDecodeSecond());
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int folds;
+    private final ArrayList<String[]> sentences = new ArrayList<>(); // words in their original case
+    private final ArrayList<String[]> sentenceTags = new ArrayList<>();
+    private final LongAdder countNanos = new LongAdder(); // counting, merging and folding, summed over threads
+    private final LongAdder modelNanos = new LongAdder(); // normalizing counts into models
+
+    /**
+     * Cross-validator on the common fork-join pool
+     * @param folds k, at least 2
+     */
+    public CrossValidator(int folds) {
+        this(ForkJoinPool.commonPool(), folds);
+    }
+
+    /**
+     * @param pool pool the folds are counted and evaluated on
+     * @param folds k, at least 2
+     */
+    public CrossValidator(ForkJoinPool pool, int folds) {
+        if (folds < 2) throw new IllegalArgumentException("Need at least 2 folds, got " + folds);
+        this.pool = pool;
+        this.folds = folds;
+    }
+
+    /**
+     * Adds the line pairs of a tagged corpus; pairs whose word and tag counts differ are skipped
+     * @param sentencesFile one space separated sentence per line
+     * @param tagsFile one space separated tag line per sentence line
+     * @throws IOException
+     */
+    public void read(String sentencesFile, String tagsFile) throws IOException {
+        Tokenizer words = new Tokenizer();
+        Tokenizer tags = new Tokenizer();
+        CorpusReader sentenceLines = new CorpusReader(sentencesFile);
+        CorpusReader tagLines = new CorpusReader(tagsFile);
+        try {
+            int length;
+            for (long line = 1; (length = sentenceLines.next(words)) >= 0 && tagLines.next(tags) >= 0; line++) {
+                if (length != tags.count()) {
+                    System.out.println("Warning: line " + line + " has " + length
+                            + " words but " + tags.count() + " tags, skipped.");
+                    continue;
+                }
+                String[] sentence = new String[length];
+                String[] sentenceTag = new String[length];
+                for (int i = 0; i < length; i++) {
+                    sentence[i] = words.token(i);
+                    sentenceTag[i] = tags.token(i);
+                }
+                sentences.add(sentence);
+                sentenceTags.add(sentenceTag);
+            }
+        } finally {
+            sentenceLines.close();
+            tagLines.close();
+        }
+    }
+
+    /**
+     * @return sentences read so far
+     */
+    public int size() {
+        return sentences.size();
+    }
+
+    /**
+     * Counts the sentences of one fold, in their original case
+     * @param fold
+     * @return counts
+     */
+    private HMMCounts countFold(int fold) {
+        long startTime = System.nanoTime();
+        HMMCounts counts = new HMMCounts();
+        for (int s = fold; s < sentences.size(); s += folds) counts.addSentence(sentences.get(s), sentenceTags.get(s));
+        countNanos.add(System.nanoTime() - startTime);
+        return counts;
+    }
+
+    /**
+     * Builds the models of one fold and starts an evaluation of every config on it
+     * @param fold held-out fold
+     * @param foldCounts counts of every fold
+     * @param grid
+     * @return evaluation of grid.get(c) at index c, each a {known, known correct, unseen, unseen correct, nanos} score
+     */
+    private List<ForkJoinTask<long[]>> evaluateFold(int fold, HMMCounts[] foldCounts, List<Config> grid) {
+        long startTime = System.nanoTime();
+        HMMCounts cased = new HMMCounts();
+        for (int f = 0; f < folds; f++) if (f != fold) cased.merge(foldCounts[f]);
+        HMMCounts lower = null;
+        for (Config config : grid) if (config.lowerCase && lower == null) lower = cased.foldCase();
+        countNanos.add(System.nanoTime() - startTime);
+
+        int heldOut = (sentences.size() - fold + folds - 1) / folds;
+        List<ForkJoinTask<long[]>> scores = new ArrayList<>();
+        for (int c = 0; c < grid.size(); c++) scores.add(null);
+        for (int lowerCase = 0; lowerCase < 2; lowerCase++) {
+            HMMCounts counts = lowerCase == 1 ? lower : cased;
+            if (counts == null) continue;
+            int[][] wordIds = null, goldIds = null;
+            ArrayList<Double> smoothings = new ArrayList<>();
+            for (Config config : grid) {
+                if (config.lowerCase == (lowerCase == 1) && !smoothings.contains(config.smoothing)) smoothings.add(config.smoothing);
+            }
+            for (double smoothing : smoothings) {
+                startTime = System.nanoTime();
+                HMMModel model = counts.toModel(0, smoothing);
+                modelNanos.add(System.nanoTime() - startTime);
+                if (wordIds == null) {
+                    // every model of these counts has the same word and tag ids
+                    wordIds = new int[heldOut][];
+                    goldIds = new int[heldOut][];
+                    for (int s = fold, h = 0; s < sentences.size(); s += folds, h++) {
+                        String[] sentence = sentences.get(s);
+                        wordIds[h] = new int[sentence.length];
+                        goldIds[h] = new int[sentence.length];
+                        for (int i = 0; i < sentence.length; i++) {
+                            wordIds[h][i] = lowerCase == 1
+                                    ? model.wordVocabulary().id(sentence[i], 0, sentence[i].length(), true)
+                                    : model.wordId(sentence[i]);
+                            goldIds[h][i] = model.tagId(sentenceTags.get(s)[i]);
+                        }
+                    }
+                }
+                for (int c = 0; c < grid.size(); c++) {
+                    Config config = grid.get(c);
+                    if (config.lowerCase != (lowerCase == 1) || config.smoothing != smoothing) continue;
+                    HMMModel penalized = model.withUnseenPenalty(config.unseenPenalty);
+                    int[][] words = wordIds, gold = goldIds;
+                    scores.set(c, pool.submit(() -> score(penalized, config.beamWidth, words, gold)));
+                }
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Tags the held-out sentences of a fold and scores them
+     * @param model
+     * @param beamWidth
+     * @param wordIds word ids of every held-out sentence
+     * @param goldIds gold tag ids of every held-out sentence, -1 for a tag the model has never seen
+     * @return {known, known correct, unseen, unseen correct, decode nanos}
+     */
+    private static long[] score(HMMModel model, int beamWidth, int[][] wordIds, int[][] goldIds) {
+        ViterbiDecoder decoder = new ViterbiDecoder(model, beamWidth, Double.POSITIVE_INFINITY, false);
+        long[] score = new long[5];
+        int[] path = new int[64];
+        for (int s = 0; s < wordIds.length; s++) {
+            int length = wordIds[s].length;
+            if (length > path.length) path = new int[Math.max(length, path.length * 2)];
+            long startTime = System.nanoTime();
+            decoder.decode(wordIds[s], length, path);
+            score[4] += System.nanoTime() - startTime;
+            for (int i = 0; i < length; i++) {
+                boolean correct = goldIds[s][i] >= 0 && path[i] == goldIds[s][i];
+                int kind = wordIds[s][i] >= 0 ? 0 : 2;
+                score[kind]++;
+                if (correct) score[kind + 1]++;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Cross-validates every config of a grid
+     * @param grid
+     * @return result of grid.get(c) at index c
+     */
+    public Result[] run(List<Config> grid) {
+        countNanos.reset();
+        modelNanos.reset();
+        List<ForkJoinTask<HMMCounts>> counting = new ArrayList<>();
+        for (int f = 0; f < folds; f++) {
+            int fold = f;
+            counting.add(pool.submit(() -> countFold(fold)));
+        }
+        HMMCounts[] foldCounts = new HMMCounts[folds];
+        for (int f = 0; f < folds; f++) foldCounts[f] = counting.get(f).join();
+
+        List<ForkJoinTask<List<ForkJoinTask<long[]>>>> foldTasks = new ArrayList<>();
+        for (int f = 0; f < folds; f++) {
+            int fold = f;
+            foldTasks.add(pool.submit(() -> evaluateFold(fold, foldCounts, grid)));
+        }
+        Result[] results = new Result[grid.size()];
+        for (int c = 0; c < results.length; c++) results[c] = new Result(grid.get(c), folds);
+        for (int f = 0; f < folds; f++) {
+            List<ForkJoinTask<long[]>> scores = foldTasks.get(f).join();
+            for (int c = 0; c < results.length; c++) results[c].add(f, scores.get(c).join());
+        }
+        return results;
+    }
+
+    /**
+     * @return seconds spent counting, merging and lower casing in the last run, summed over threads
+     */
+    public double countSeconds() {
+        return countNanos.sum() / 1e9;
+    }
+
+    /**
+     * @return seconds spent normalizing counts into models in the last run, summed over threads
+     */
+    public double modelSeconds() {
+        return modelNanos.sum() / 1e9;
+    }
+
+    /**
+     * java CrossValidator [folds] [sentences file] [tags file]
+     * Cross-validates a 60 config grid (5 penalties x 3 smoothing constants x 2 beam widths x
+     * lower case on/off), 10 folds by default, on Brown's training files and prints the results
+     * best first, with the time taken next to that of one full training.
+     */
+    public static void main(String[] args) throws Exception {
+        int folds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String sentencesFile = args.length > 1 ? args[1] : "PS5/brown-train-sentences.txt";
+        String tagsFile = args.length > 2 ? args[2] : "PS5/brown-train-tags.txt";
+
+        // a warmed up full training, the unit the sweep is timed in
+        double trainSeconds = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            long startTime = System.nanoTime();
+            new StreamingTrainer().count(sentencesFile, tagsFile).toModel(-100);
+            trainSeconds = (System.nanoTime() - startTime) / 1e9;
+        }
+
+        long startTime = System.nanoTime();
+        CrossValidator validator = new CrossValidator(folds);
+        validator.read(sentencesFile, tagsFile);
+        double readSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        List<Config> grid = grid(new double[]{-10, -20, -50, -100, -200}, new double[]{0, 0.01, 0.5},
+                new int[]{0, 5}, new boolean[]{true, false});
+        startTime = System.nanoTime();
+        Result[] results = validator.run(grid);
+        double runSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        Arrays.sort(results, (a, b) -> Double.compare(b.accuracy(), a.accuracy()));
+        System.out.printf("%9s %9s %4s %-5s %8s %5s %8s %8s %9s%n",
+                "penalty", "smoothing", "beam", "lower", "accuracy", "sd", "known", "unseen", "tokens/s");
+        for (Result result : results) System.out.println(result);
+
+        System.out.printf("%d configs x %d folds of %d sentences in %.1f s on %d threads (%.1f s reading), "
+                        + "%.0f full trainings of %.2f s each%n",
+                grid.size(), folds, validator.size(), runSeconds, validator.pool.getParallelism(), readSeconds,
+                (readSeconds + runSeconds) / trainSeconds, trainSeconds);
+        System.out.printf("counting %.2f s, models %.2f s, the rest decoding held-out folds%n",
+                validator.countSeconds(), validator.modelSeconds());
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Accumulated results of tagging a test set against its gold tags: a confusion matrix over the
+ * model's tags (plus one row for gold tags the model has never seen), accuracy on known and
+ * unseen words, and decode time. Partial evaluations of separate chunks merge by addition,
+ * so a test set can be scored in parallel.
+ */
+public class Evaluation {
+
+    private final HMMModel model;
+    private final int size;          // model tags + 1 for gold tags outside the model
+    private final long[] confusion;  // [gold * size + predicted] -> tokens
+    private long knownTokens;
+    private long knownCorrect;
+    private long unseenTokens;
+    private long unseenCorrect;
+    private long decodeNanos;        // summed over threads
+    private long skippedLines;       // line pairs whose word and tag counts differ
+
+    /**
+     * @param model model being evaluated, for tag ids and names
+     */
+    public Evaluation(HMMModel model) {
+        this.model = model;
+        this.size = model.numTags() + 1;
+        this.confusion = new long[size * size];
+    }
+
+    /**
+     * Scores one tagged sentence
+     * @param words tokenizer holding the sentence line
+     * @param gold tokenizer holding the gold tag line, as many tokens as words
+     * @param predicted predicted tag id of every word, -1 if none
+     */
+    public void add(Tokenizer words, Tokenizer gold, int[] predicted) {
+        int other = size - 1;
+        for (int i = 0; i < words.count(); i++) {
+            int goldTag = gold.lookup(model.tagVocabulary(), i, false);
+            if (goldTag < 0) goldTag = other;
+            int predictedTag = predicted[i] < 0 ? other : predicted[i];
+            confusion[goldTag * size + predictedTag]++;
+            boolean correct = goldTag == predictedTag && goldTag != other;
+            if (model.wordId(words, i) >= 0) {
+                knownTokens++;
+                if (correct) knownCorrect++;
+            } else {
+                unseenTokens++;
+                if (correct) unseenCorrect++;
+            }
+        }
+    }
+
+    void addDecodeTime(long nanos) {
+        decodeNanos += nanos;
+    }
+
+    void addSkippedLine() {
+        skippedLines++;
+    }
+
+    /**
+     * Adds another partial evaluation of the same model into this one
+     * @param other
+     */
+    public void merge(Evaluation other) {
+        for (int i = 0; i < confusion.length; i++) confusion[i] += other.confusion[i];
+        knownTokens += other.knownTokens;
+        knownCorrect += other.knownCorrect;
+        unseenTokens += other.unseenTokens;
+        unseenCorrect += other.unseenCorrect;
+        decodeNanos += other.decodeNanos;
+        skippedLines += other.skippedLines;
+    }
+
+    public long tokens() {
+        return knownTokens + unseenTokens;
+    }
+
+    public double accuracy() {
+        return ratio(knownCorrect + unseenCorrect, tokens());
+    }
+
+    public double knownAccuracy() {
+        return ratio(knownCorrect, knownTokens);
+    }
+
+    public double unseenAccuracy() {
+        return ratio(unseenCorrect, unseenTokens);
+    }
+
+    public long unseenTokens() {
+        return unseenTokens;
+    }
+
+    public long skippedLines() {
+        return skippedLines;
+    }
+
+    /**
+     * @return tokens per second of decoder time on one thread
+     */
+    public double tokensPerDecodeSecond() {
+        return decodeNanos == 0 ? 0 : tokens() / (decodeNanos / 1e9);
+    }
+
+    /**
+     * @param gold tag id
+     * @param predicted tag id
+     * @return tokens with that gold tag that were tagged predicted
+     */
+    public long confusion(int gold, int predicted) {
+        return confusion[gold * size + predicted];
+    }
+
+    /**
+     * @param tag tag id
+     * @return fraction of tokens tagged tag that really are tag
+     */
+    public double precision(int tag) {
+        long predicted = 0;
+        for (int gold = 0; gold < size; gold++) predicted += confusion[gold * size + tag];
+        return ratio(confusion[tag * size + tag], predicted);
+    }
+
+    /**
+     * @param tag tag id
+     * @return fraction of tokens that really are tag that were tagged tag
+     */
+    public double recall(int tag) {
+        long gold = 0;
+        for (int predicted = 0; predicted < size; predicted++) gold += confusion[tag * size + predicted];
+        return ratio(confusion[tag * size + tag], gold);
+    }
+
+    private static double ratio(long part, long whole) {
+        return whole == 0 ? 0 : (double) part / whole;
+    }
+
+    /**
+     * @return summary, per tag precision and recall, and the confusion matrix (rows gold, columns predicted)
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("accuracy %.2f%% of %d tokens, known %.2f%%, unseen %.2f%% (%d tokens), %d lines skipped%n",
+                100 * accuracy(), tokens(), 100 * knownAccuracy(), 100 * unseenAccuracy(), unseenTokens, skippedLines));
+        report.append(String.format("%-6s %9s %9s %9s%n", "tag", "precision", "recall", "tokens"));
+        for (int tag = 0; tag < size; tag++) {
+            long gold = 0;
+            for (int predicted = 0; predicted < size; predicted++) gold += confusion[tag * size + predicted];
+            if (gold == 0 && precision(tag) == 0) continue;
+            report.append(String.format("%-6s %8.2f%% %8.2f%% %9d%n", name(tag), 100 * precision(tag), 100 * recall(tag), gold));
+        }
+        report.append(String.format("%-6s", ""));
+        for (int predicted = 0; predicted < size; predicted++) report.append(String.format("%7s", name(predicted)));
+        report.append(String.format("%n"));
+        for (int gold = 0; gold < size; gold++) {
+            report.append(String.format("%-6s", name(gold)));
+            for (int predicted = 0; predicted < size; predicted++) {
+                report.append(String.format("%7d", confusion[gold * size + predicted]));
+            }
+            report.append(String.format("%n"));
+        }
+        return report.toString();
+    }
+
+    private String name(int tag) {
+        return tag == size - 1 ? "?" : model.tagName(tag);
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Scores a model on a test set on all cores. The sentence and gold tag files are split into
+ * chunks of line pairs, as in ParallelTrainer; each chunk is read through CorpusReader and
+ * tagged on its own worker into a private Evaluation, and the
+ * partial evaluations are merged as they finish. Only a bounded number of chunks are in flight,
+ * so memory stays independent of the size of the test set.
+ */
+public class Evaluator {
+
+    private final HMMModel model;
+    private final ForkJoinPool pool;
+    private final int chunkLines;     // line pairs per chunk
+    private final int maxInFlight;    // chunks read ahead of the merge
+
+    /**
+     * Evaluator on the common fork-join pool with 4096 line pairs per chunk
+     * @param model
+     */
+    public Evaluator(HMMModel model) {
+        this(model, ForkJoinPool.commonPool(), 4096);
+    }
+
+    /**
+     * @param model
+     * @param pool pool the chunks are tagged on
+     * @param chunkLines line pairs per chunk
+     */
+    public Evaluator(HMMModel model, ForkJoinPool pool, int chunkLines) {
+        this.model = model;
+        this.pool = pool;
+        this.chunkLines = chunkLines;
+        this.maxInFlight = pool.getParallelism() * 2;
+    }
+
+    /**
+     * Tags and scores a chunk of line pairs
+     * @param sentences sentence file
+     * @param sentenceStart offset of the chunk's first sentence line
+     * @param sentenceEnd end of its last sentence line
+     * @param tags gold tag file
+     * @param tagStart offset of the chunk's first tag line
+     * @param tagEnd end of its last tag line
+     * @param firstLine line number of the first pair
+     * @return evaluation of the chunk
+     * @throws IOException
+     */
+    private Evaluation evaluateChunk(FileChannel sentences, long sentenceStart, long sentenceEnd,
+                                     FileChannel tags, long tagStart, long tagEnd, long firstLine) throws IOException {
+        Evaluation evaluation = new Evaluation(model);
+        Tokenizer words = new Tokenizer();
+        Tokenizer gold = new Tokenizer();
+        CorpusReader sentenceLines = new CorpusReader(sentences, sentenceStart, sentenceEnd);
+        CorpusReader tagLines = new CorpusReader(tags, tagStart, tagEnd);
+        ViterbiDecoder decoder = model.decoder();
+        int[] path = new int[64];
+        int length;
+        for (long line = firstLine; (length = sentenceLines.next(words)) >= 0 && tagLines.next(gold) >= 0; line++) {
+            if (length != gold.count()) {
+                System.out.println("Warning: line " + line + " has " + length
+                        + " words but " + gold.count() + " tags, skipped.");
+                evaluation.addSkippedLine();
+                continue;
+            }
+            if (length > path.length) path = new int[Math.max(length, path.length * 2)];
+            long startTime = System.nanoTime();
+            decoder.decode(words, path);
+            evaluation.addDecodeTime(System.nanoTime() - startTime);
+            evaluation.add(words, gold, path);
+        }
+        return evaluation;
+    }
+
+    /**
+     * Tags a test set and scores it against the gold tags
+     * @param sentencesFile one space separated sentence per line
+     * @param tagsFile one space separated gold tag line per sentence line
+     * @return evaluation of every well formed line pair
+     * @throws IOException
+     */
+    public Evaluation evaluate(String sentencesFile, String tagsFile) throws IOException {
+        Evaluation total = new Evaluation(model);
+        ArrayDeque<ForkJoinTask<Evaluation>> inFlight = new ArrayDeque<>();
+
+        FileChannel sentences = CorpusReader.open(sentencesFile);
+        FileChannel tags = CorpusReader.open(tagsFile);
+        try {
+            CorpusReader sentenceLines = new CorpusReader(sentences, 0, -1);
+            CorpusReader tagLines = new CorpusReader(tags, 0, -1);
+            long lineNumber = 1;
+            while (true) {
+                // find the next chunk on this thread, read and tag it on the pool
+                long sentenceStart = sentenceLines.position(), tagStart = tagLines.position();
+                long size = Math.min(sentenceLines.skipLines(chunkLines), tagLines.skipLines(chunkLines));
+                if (size == 0) break;
+                long sentenceEnd = sentenceLines.position(), tagEnd = tagLines.position();
+                long firstLine = lineNumber;
+                lineNumber += size;
+                inFlight.add(pool.submit(() -> evaluateChunk(sentences, sentenceStart, sentenceEnd, tags, tagStart, tagEnd, firstLine)));
+                if (size < chunkLines) break;
+
+                // counts add up in any order, but merge oldest first to bound what is held
+                while (inFlight.size() >= maxInFlight || (!inFlight.isEmpty() && inFlight.peek().isDone())) {
+                    total.merge(inFlight.poll().join());
+                }
+            }
+            while (!inFlight.isEmpty()) total.merge(inFlight.poll().join());
+
+            if (sentenceLines.lines() != tagLines.lines() || sentenceLines.skipLines(1) + tagLines.skipLines(1) > 0) {
+                String longer = sentenceLines.lines() > tagLines.lines() ? sentencesFile : tagsFile;
+                System.out.println("Warning: " + longer + " has extra lines from line " + lineNumber + ", ignored.");
+            }
+        } finally {
+            sentences.close();
+            tags.close();
+        }
+        return total;
+    }
+
+    /**
+     * java Evaluator [transition floor]
+     * Evaluates the Brown model on the Brown test set and prints the full report with wall clock
+     * throughput, optionally after dropping transitions less likely than the floor, e.g. 1e-3
+     */
+    public static void main(String[] args) throws Exception {
+        POS pos = new POS();
+        pos.train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+        HMMModel model = pos.getModel();
+        if (args.length > 0) {
+            int before = model.numTransitions();
+            model = model.withTransitionFloor(Double.parseDouble(args[0]));
+            System.out.println("Transitions kept: " + model.numTransitions() + " of " + before);
+        }
+        Evaluator evaluator = new Evaluator(model);
+        Evaluation evaluation = null;
+        double seconds = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            long startTime = System.nanoTime();
+            evaluation = evaluator.evaluate("PS5/brown-test-sentences.txt", "PS5/brown-test-tags.txt");
+            seconds = (System.nanoTime() - startTime) / 1e9;
+        }
+        System.out.print(evaluation);
+        System.out.printf("%.0f tokens/sec wall clock on %d threads, %.0f tokens/sec per decoding thread%n",
+                evaluation.tokens() / seconds, evaluator.pool.getParallelism(), evaluation.tokensPerDecodeSecond());
+    }
+}
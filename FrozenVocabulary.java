@@ -0,0 +1,338 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Read-only word dictionary built once training is done. A frozen model built on it is 3 to 4 times
+ * smaller than the observation maps (java FrozenVocabulary).
+ * Words are stored back to back as UTF-8 in a single byte array and found with a minimal perfect
+ * hash (hash and displace): a word's hash picks a bucket, the bucket's displacement picks its
+ * slot, and every word has a slot of its own, so the slot is the word's id. A lookup hashes
+ * the word once and compares it against one stored word, to reject words that are not in the
+ * dictionary. Per word this costs its UTF-8 bytes, a 4 byte offset and 1 byte of displacement.
+ */
+public class FrozenVocabulary implements WordIndex {
+
+    private static final int BUCKET_SIZE = 4;                // average words per bucket
+    private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[][]{new byte[64]});
+
+    private final byte[] bytes;          // UTF-8 of every word, in id order
+    private final int[] offsets;         // id -> first byte, offsets[size] = bytes.length
+    private final int[] displacements;   // bucket -> displacement that places its words
+    private final long seed;
+
+    private FrozenVocabulary(byte[] bytes, int[] offsets, int[] displacements, long seed) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.displacements = displacements;
+        this.seed = seed;
+    }
+
+    /**
+     * Builds the perfect hash over a dictionary
+     * @param words
+     * @param newIds receives the id in the frozen dictionary of every id in words
+     * @return frozen dictionary
+     */
+    public static FrozenVocabulary build(WordIndex words, int[] newIds) {
+        int n = words.size();
+        byte[][] utf8 = new byte[n][];
+        for (int i = 0; i < n; i++) utf8[i] = words.get(i).getBytes(StandardCharsets.UTF_8);
+        // a new seed rehashes every word: tryBuild gives up when some bucket finds no displacement
+        // that places all its words in free slots, which two words with the same hash always cause
+        for (long seed = 0; ; seed++) {
+            FrozenVocabulary frozen = tryBuild(utf8, newIds, seed);
+            if (frozen != null) return frozen;
+        }
+    }
+
+    /**
+     * @param utf8 words
+     * @param newIds receives the slot of every word
+     * @param seed
+     * @return frozen dictionary, or null if some bucket could not be placed with this seed
+     */
+    private static FrozenVocabulary tryBuild(byte[][] utf8, int[] newIds, long seed) {
+        int n = utf8.length;
+        int numBuckets = Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        long[] hashes = new long[n];
+        for (int i = 0; i < n; i++) hashes[i] = hash(utf8[i], 0, utf8[i].length, seed);
+
+        // words grouped by bucket (counting sort), buckets placed largest first
+        int[] bucketStarts = new int[numBuckets + 1];
+        for (int i = 0; i < n; i++) bucketStarts[bucket(hashes[i], numBuckets) + 1]++;
+        for (int b = 0; b < numBuckets; b++) bucketStarts[b + 1] += bucketStarts[b];
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(bucketStarts, numBuckets);
+        for (int i = 0; i < n; i++) members[fill[bucket(hashes[i], numBuckets)]++] = i;
+        Integer[] order = new Integer[numBuckets];
+        for (int b = 0; b < numBuckets; b++) order[b] = b;
+        Arrays.sort(order, (a, b) -> (bucketStarts[b + 1] - bucketStarts[b]) - (bucketStarts[a + 1] - bucketStarts[a]));
+
+        boolean[] taken = new boolean[n];
+        int[] displacements = new int[numBuckets];
+        int[] slots = new int[64];
+        for (int b : order) {
+            int from = bucketStarts[b], size = bucketStarts[b + 1] - from;
+            if (size == 0) break;
+            if (size > slots.length) slots = new int[size];
+            int d = 0;
+            while (!fits(hashes, members, from, size, d, n, taken, slots)) {
+                if (++d == 1 << 24) return null;
+            }
+            displacements[b] = d;
+            for (int k = 0; k < size; k++) {
+                taken[slots[k]] = true;
+                newIds[members[from + k]] = slots[k];
+            }
+        }
+
+        int[] offsets = new int[n + 1];
+        byte[][] bySlot = new byte[n][];
+        for (int i = 0; i < n; i++) bySlot[newIds[i]] = utf8[i];
+        for (int s = 0; s < n; s++) offsets[s + 1] = offsets[s] + bySlot[s].length;
+        byte[] bytes = new byte[offsets[n]];
+        for (int s = 0; s < n; s++) System.arraycopy(bySlot[s], 0, bytes, offsets[s], bySlot[s].length);
+        return new FrozenVocabulary(bytes, offsets, displacements, seed);
+    }
+
+    /**
+     * Checks whether displacement d puts every word of a bucket in a free slot of its own
+     * @return true if it does, with the slots in slots[0 .. size)
+     */
+    private static boolean fits(long[] hashes, int[] members, int from, int size, int d, int n, boolean[] taken, int[] slots) {
+        for (int k = 0; k < size; k++) {
+            int s = slot(hashes[members[from + k]], d, n);
+            if (taken[s]) return false;
+            for (int j = 0; j < k; j++) {
+                if (slots[j] == s) return false;
+            }
+            slots[k] = s;
+        }
+        return true;
+    }
+
+    private static int bucket(long hash, int numBuckets) {
+        return (int) ((hash >>> 1) % numBuckets);
+    }
+
+    private static int slot(long hash, int d, int n) {
+        return (int) ((mix(hash + d * GOLDEN) >>> 1) % n);
+    }
+
+    // murmur3 finalizer
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    // FNV-1a over the bytes, then mixed
+    private static long hash(byte[] utf8, int from, int to, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = from; i < to; i++) h = (h ^ (utf8[i] & 0xff)) * 0x100000001b3L;
+        return mix(h);
+    }
+
+    /**
+     * Encodes a slice of text as UTF-8 the way String.getBytes does (a lone surrogate becomes '?')
+     * @param text
+     * @param start
+     * @param end
+     * @param foldCase encode in lower case
+     * @param out receives the bytes, needs 3 bytes per char
+     * @return number of bytes written
+     */
+    private static int utf8(CharSequence text, int start, int end, boolean foldCase, byte[] out) {
+        int n = 0;
+        for (int c = start; c < end; c++) {
+            char ch = foldCase ? Character.toLowerCase(text.charAt(c)) : text.charAt(c);
+            if (ch < 0x80) {
+                out[n++] = (byte) ch;
+            } else if (ch < 0x800) {
+                out[n++] = (byte) (0xc0 | ch >> 6);
+                out[n++] = (byte) (0x80 | ch & 0x3f);
+            } else if (Character.isHighSurrogate(ch) && c + 1 < end && Character.isLowSurrogate(text.charAt(c + 1))) {
+                int codePoint = Character.toCodePoint(ch, text.charAt(++c));
+                out[n++] = (byte) (0xf0 | codePoint >> 18);
+                out[n++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                out[n++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                out[n++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(ch)) {
+                out[n++] = '?';
+            } else {
+                out[n++] = (byte) (0xe0 | ch >> 12);
+                out[n++] = (byte) (0x80 | ch >> 6 & 0x3f);
+                out[n++] = (byte) (0x80 | ch & 0x3f);
+            }
+        }
+        return n;
+    }
+
+    public int id(String s) {
+        return id(s, 0, s.length(), false);
+    }
+
+    public int id(CharSequence text, int start, int end, boolean foldCase) {
+        int n = offsets.length - 1;
+        if (n == 0) return -1;
+        byte[][] scratch = SCRATCH.get();
+        if (scratch[0].length < 3 * (end - start)) scratch[0] = new byte[3 * (end - start)];
+        byte[] encoded = scratch[0];
+        int length = utf8(text, start, end, foldCase, encoded);
+
+        long hash = hash(encoded, 0, length, seed);
+        int id = slot(hash, displacements[bucket(hash, displacements.length)], n);
+        return Arrays.equals(encoded, 0, length, bytes, offsets[id], offsets[id + 1]) ? id : -1;
+    }
+
+    public String get(int id) {
+        return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The observation maps of POS and markov: tag -> word -> log-prob
+     * @param model
+     * @return maps holding the same emissions as the model
+     */
+    private static HashMap<String, HashMap<String, Double>> observationMap(HMMModel model) {
+        HashMap<String, HashMap<String, Double>> map = new HashMap<>();
+        int[] offsets = model.emissionOffsetTable(), tags = model.emissionTagTable();
+        double[] scores = model.emissionScoreTable();
+        WordIndex words = model.wordVocabulary();
+        for (int w = 0; w < words.size(); w++) {
+            for (int k = offsets[w]; k < offsets[w + 1]; k++) {
+                // each tag's map holds its own copy of the word, as when built from split lines
+                map.computeIfAbsent(model.tagName(tags[k]), t -> new HashMap<>()).put(new String(words.get(w)), scores[k]);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Heap taken by the emissions of a model as observation maps, as an HMMModel, and frozen
+     * @param name
+     * @param build trains the model; nothing else may keep its words alive
+     */
+    private static void sizeReport(String name, Supplier<HMMModel> build) {
+        HMMModel model = build.get();
+        int numWords = model.wordVocabulary().size();
+        long withModel = usedHeap();
+        HashMap<String, HashMap<String, Double>> maps = observationMap(model);
+        long withMaps = usedHeap();
+        HMMModel frozen = model.freeze();
+        long withFrozen = usedHeap();
+        model = null;
+        long withoutModel = usedHeap();
+
+        long mapBytes = withMaps - withModel, frozenBytes = withFrozen - withMaps, modelBytes = withFrozen - withoutModel;
+        System.out.printf("%-10s %8d words  maps %7.1f MB  HMMModel %7.1f MB  frozen %6.1f MB  (%.1fx smaller than maps, %.1fx than HMMModel)%n",
+                name, numWords, mapBytes / 1e6, modelBytes / 1e6, frozenBytes / 1e6,
+                (double) mapBytes / frozenBytes, (double) modelBytes / frozenBytes);
+        if (maps.isEmpty() || frozen.numTags() == 0) System.out.println(); // keep maps and frozen alive until measured
+    }
+
+    /**
+     * @return model of 150000 sentences of random words, about three million distinct
+     */
+    private static HMMModel syntheticModel() {
+        HMMCounts counts = new HMMCounts();
+        Random random = new Random(42);
+        String[] tagNames = {"N", "V", "ADJ", "ADV", "NP"};
+        String[] sentence = new String[20], sentenceTags = new String[20];
+        StringBuilder word = new StringBuilder();
+        for (int s = 0; s < 150000; s++) {
+            for (int i = 0; i < sentence.length; i++) {
+                word.setLength(0);
+                for (int c = 4 + random.nextInt(8); c > 0; c--) word.append((char) ('a' + random.nextInt(26)));
+                sentence[i] = word.toString();
+                sentenceTags[i] = tagNames[random.nextInt(tagNames.length)];
+            }
+            counts.addSentence(sentence, sentenceTags);
+        }
+        return counts.toModel(-100);
+    }
+
+    /**
+     * Heap size before and after freezing, for Brown and for a synthetic two million word vocabulary,
+     * then lookup speed and tagging accuracy of the frozen Brown model
+     */
+    public static void main(String[] args) throws Exception {
+        String trainSentences = "PS5/brown-train-sentences.txt", trainTags = "PS5/brown-train-tags.txt";
+        sizeReport("brown", () -> {
+            try {
+                return new StreamingTrainer().train(trainSentences, trainTags, -100);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        sizeReport("synthetic", FrozenVocabulary::syntheticModel);
+
+        // lookup speed over the test tokens
+        HMMModel model = new StreamingTrainer().train(trainSentences, trainTags, -100);
+        HMMModel frozen = model.freeze();
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader("PS5/brown-test-sentences.txt"));
+        String line;
+        while ((line = reader.readLine()) != null) lines.add(line);
+        reader.close();
+        Tokenizer tokens = new Tokenizer();
+        for (int pass = 0; pass < 5; pass++) {
+            for (HMMModel m : new HMMModel[]{model, frozen}) {
+                long startTime = System.nanoTime(), found = 0, count = 0;
+                for (int repeat = 0; repeat < 10; repeat++) {
+                    for (String sentenceLine : lines) {
+                        int length = tokens.tokenize(sentenceLine);
+                        for (int i = 0; i < length; i++) if (m.wordId(tokens, i) >= 0) found++;
+                        count += length;
+                    }
+                }
+                if (pass == 4) {
+                    System.out.printf("%-9s lookups: %.1f ns/token, %d found%n", m == model ? "Vocabulary" : "Frozen",
+                            (System.nanoTime() - startTime) / (double) count, found / 10);
+                }
+            }
+        }
+
+        // accuracy is unchanged by quantization
+        for (HMMModel m : new HMMModel[]{model, frozen}) {
+            Tokenizer tags = new Tokenizer();
+            BufferedReader sentences = new BufferedReader(new FileReader("PS5/brown-test-sentences.txt"));
+            BufferedReader tagLines = new BufferedReader(new FileReader("PS5/brown-test-tags.txt"));
+            int[] path = new int[256];
+            long correct = 0, total = 0;
+            String tagLine;
+            while ((line = sentences.readLine()) != null && (tagLine = tagLines.readLine()) != null) {
+                int length = tokens.tokenize(line);
+                if (length != tags.tokenize(tagLine)) continue;
+                m.decoder().decode(tokens, path);
+                for (int i = 0; i < length; i++) if (tags.matches(i, m.tagName(path[i]))) correct++;
+                total += length;
+            }
+            sentences.close();
+            tagLines.close();
+            System.out.printf("%-9s accuracy: %.2f%%%n", m == model ? "Vocabulary" : "Frozen", 100.0 * correct / total);
+        }
+    }
+}
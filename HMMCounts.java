@@ -0,0 +1,354 @@
+import java.util.Arrays;
+
+/**
+ * Raw transition and emission counts for an HMM, kept in primitive tables.
+ * Memory depends on the number of distinct tags and words, not on how much text was counted.
+ * toModel() turns the counts into log-probs the same way OTMaps does (log(count / total)), optionally
+ * with add-k smoothing; the raw counts are kept, so one table can be normalized many ways.
+ */
+public class HMMCounts {
+
+    public static final String START = "#"; // tag every sentence starts from
+
+    private final Vocabulary tags;
+    private final Vocabulary words;
+    private long[][] transitionCounts;     // [prev][next] -> count
+    private final LongCounter trigramCounts; // trigramKey(prev2, prev, next) -> count
+    private long[] tagCounts;              // tag -> number of words observed with it
+    private int[][] emissionTags;          // word -> tags it was observed with
+    private long[][] emissionCounts;       // word -> matching counts
+    private long tokens;                   // words counted so far
+
+    public HMMCounts() {
+        tags = new Vocabulary();
+        words = new Vocabulary();
+        tags.add(START);
+        transitionCounts = new long[16][16];
+        trigramCounts = new LongCounter();
+        tagCounts = new long[16];
+        emissionTags = new int[1024][];
+        emissionCounts = new long[1024][];
+    }
+
+    /**
+     * Counts one tagged sentence
+     * @param sentence words, already normalized (lower case)
+     * @param sentenceTags one tag per word
+     */
+    public void addSentence(String[] sentence, String[] sentenceTags) {
+        addSentence(sentence, sentenceTags, sentence.length);
+    }
+
+    /**
+     * Counts the first length words of a tagged sentence
+     * @param sentence words, already normalized (lower case)
+     * @param sentenceTags one tag per word
+     * @param length number of words to count
+     */
+    public void addSentence(String[] sentence, String[] sentenceTags, int length) {
+        int prev2 = 0, prev = 0; // sentences start from (start, start)
+        for (int i = 0; i < length; i++) {
+            int tag = tagId(sentenceTags[i]);
+            transitionCounts[prev][tag]++;
+            trigramCounts.add(trigramKey(prev2, prev, tag), 1);
+            addEmission(wordId(sentence[i]), tag, 1);
+            prev2 = prev;
+            prev = tag;
+        }
+        tokens += length;
+    }
+
+    /**
+     * Counts one tokenized sentence line against its tokenized tag line.
+     * Words are interned in lower case straight from the line; only new words and tags become Strings.
+     * @param sentence tokenizer holding the sentence line
+     * @param sentenceTags tokenizer holding the tag line, with one tag per word
+     */
+    public void addSentence(Tokenizer sentence, Tokenizer sentenceTags) {
+        int length = sentence.count();
+        int prev2 = 0, prev = 0; // sentences start from (start, start)
+        for (int i = 0; i < length; i++) {
+            int tag = tagId(sentenceTags, i);
+            transitionCounts[prev][tag]++;
+            trigramCounts.add(trigramKey(prev2, prev, tag), 1);
+            addEmission(wordId(sentence, i), tag, 1);
+            prev2 = prev;
+            prev = tag;
+        }
+        tokens += length;
+    }
+
+    /**
+     * Packs three tag ids (each below 2^21) into one trigram key
+     * @param prev2
+     * @param prev
+     * @param next
+     * @return key
+     */
+    static long trigramKey(int prev2, int prev, int next) {
+        return ((long) prev2 << 42) | ((long) prev << 21) | next;
+    }
+
+    /**
+     * Interns a tag, growing the tag tables if it is new
+     * @param tag
+     * @return tag id
+     */
+    private int tagId(String tag) {
+        return growTags(tags.add(tag));
+    }
+
+    private int tagId(Tokenizer tokens, int token) {
+        return growTags(tokens.intern(tags, token, false));
+    }
+
+    /**
+     * Grows the tag tables to hold a tag id
+     * @param id
+     * @return id
+     */
+    private int growTags(int id) {
+        if (id >= tagCounts.length) {
+            int capacity = tagCounts.length * 2;
+            tagCounts = Arrays.copyOf(tagCounts, capacity);
+            transitionCounts = Arrays.copyOf(transitionCounts, capacity);
+            for (int i = 0; i < capacity; i++) {
+                transitionCounts[i] = transitionCounts[i] == null ? new long[capacity] : Arrays.copyOf(transitionCounts[i], capacity);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Interns a word, growing the emission tables if it is new
+     * @param word
+     * @return word id
+     */
+    private int wordId(String word) {
+        return growWords(words.add(word));
+    }
+
+    private int wordId(Tokenizer tokens, int token) {
+        return growWords(tokens.intern(words, token, true));
+    }
+
+    /**
+     * Grows the emission tables to hold a word id
+     * @param id
+     * @return id
+     */
+    private int growWords(int id) {
+        if (id >= emissionTags.length) {
+            emissionTags = Arrays.copyOf(emissionTags, emissionTags.length * 2);
+            emissionCounts = Arrays.copyOf(emissionCounts, emissionCounts.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * Adds count observations of a word with a tag
+     * @param word word id
+     * @param tag tag id
+     * @param count
+     */
+    private void addEmission(int word, int tag, long count) {
+        tagCounts[tag] += count;
+        int[] seen = emissionTags[word];
+        if (seen == null) {
+            emissionTags[word] = new int[]{tag};
+            emissionCounts[word] = new long[]{count};
+            return;
+        }
+        for (int k = 0; k < seen.length; k++) {
+            if (seen[k] == tag) {
+                emissionCounts[word][k] += count;
+                return;
+            }
+        }
+        emissionTags[word] = Arrays.copyOf(seen, seen.length + 1);
+        emissionTags[word][seen.length] = tag;
+        emissionCounts[word] = Arrays.copyOf(emissionCounts[word], seen.length + 1);
+        emissionCounts[word][seen.length] = count;
+    }
+
+    /**
+     * Adds another set of counts into this one. Tags and words new to this table are interned
+     * in the other table's order, so merging shards in corpus order gives the same ids, and the
+     * same model, as counting the whole corpus in one pass.
+     * @param other
+     */
+    public void merge(HMMCounts other) {
+        merge(other, false);
+    }
+
+    /**
+     * Copy of these counts with words that differ only in case counted as one, as if every word
+     * had been counted in lower case. Tag ids, and the order words first appear in, are unchanged.
+     * @return folded counts
+     */
+    public HMMCounts foldCase() {
+        HMMCounts folded = new HMMCounts();
+        folded.merge(this, true);
+        return folded;
+    }
+
+    /**
+     * @param other
+     * @param foldCase intern the other table's words in lower case
+     */
+    private void merge(HMMCounts other, boolean foldCase) {
+        int[] tagMap = new int[other.numTags()];
+        for (int t = 0; t < tagMap.length; t++) tagMap[t] = tagId(other.tags.get(t));
+        for (int prev = 0; prev < tagMap.length; prev++) {
+            for (int next = 0; next < tagMap.length; next++) {
+                transitionCounts[tagMap[prev]][tagMap[next]] += other.transitionCounts[prev][next];
+            }
+        }
+        for (int slot = 0; slot < other.trigramCounts.capacity(); slot++) {
+            if (!other.trigramCounts.used(slot)) continue;
+            long key = other.trigramCounts.keyAt(slot);
+            int prev2 = (int) (key >>> 42), prev = (int) (key >>> 21) & 0x1fffff, next = (int) key & 0x1fffff;
+            trigramCounts.add(trigramKey(tagMap[prev2], tagMap[prev], tagMap[next]), other.trigramCounts.countAt(slot));
+        }
+        for (int w = 0; w < other.numWords(); w++) {
+            String s = other.words.get(w);
+            int word = foldCase ? growWords(words.add(s, 0, s.length(), true)) : wordId(s);
+            for (int k = 0; k < other.emissionTags[w].length; k++) {
+                addEmission(word, tagMap[other.emissionTags[w][k]], other.emissionCounts[w][k]);
+            }
+        }
+        tokens += other.tokens;
+    }
+
+    public int numTags() {
+        return tags.size();
+    }
+
+    public int numWords() {
+        return words.size();
+    }
+
+    public long tokens() {
+        return tokens;
+    }
+
+    /**
+     * @param word word id
+     * @return the word as it was counted
+     */
+    String word(int word) {
+        return words.get(word);
+    }
+
+    /**
+     * @param word word id
+     * @return tag ids the word was observed with, shared, must not be modified
+     */
+    int[] emissionTags(int word) {
+        return emissionTags[word];
+    }
+
+    /**
+     * @param word word id
+     * @return counts matching emissionTags(word), shared, must not be modified
+     */
+    long[] emissionCounts(int word) {
+        return emissionCounts[word];
+    }
+
+    long transitionCount(int prev, int next) {
+        return transitionCounts[prev][next];
+    }
+
+    /**
+     * @param tag
+     * @return number of words observed with the tag
+     */
+    long tagCount(int tag) {
+        return tagCounts[tag];
+    }
+
+    /**
+     * @param tokens
+     * @param token
+     * @return number of times the word was counted, in any case, 0 if never
+     */
+    long wordCount(Tokenizer tokens, int token) {
+        int word = tokens.lookup(words, token, true);
+        if (word < 0) return 0;
+        long total = 0;
+        for (long count : emissionCounts[word]) total += count;
+        return total;
+    }
+
+    /**
+     * @param tokens
+     * @param token
+     * @return tag id of the token, -1 if it is not a known tag
+     */
+    int lookupTag(Tokenizer tokens, int token) {
+        return tokens.lookup(tags, token, false);
+    }
+
+    LongCounter trigramCounts() {
+        return trigramCounts;
+    }
+
+    /**
+     * Normalizes the counts into a second-order model
+     * @param unseenPenalty score for a word that was never observed with a tag
+     * @return trigram model
+     */
+    public TrigramModel toTrigramModel(double unseenPenalty) {
+        return new TrigramModel(this, toModel(unseenPenalty));
+    }
+
+    /**
+     * Normalizes the counts into a compiled model. The model shares nothing with these counts,
+     * so counting can carry on afterwards.
+     * @param unseenPenalty score for a word that was never observed with a tag
+     * @return compiled model
+     */
+    public HMMModel toModel(double unseenPenalty) {
+        return toModel(unseenPenalty, 0);
+    }
+
+    /**
+     * Normalizes the counts into a compiled model with add-k smoothing. Every transition into a
+     * tag other than the start tag gets k extra counts, so none is impossible, and every observed
+     * emission gets k extra counts out of k per word in the vocabulary; emissions never observed
+     * still score unseenPenalty. With k = 0 this is exactly toModel(unseenPenalty).
+     * @param unseenPenalty score for a word that was never observed with a tag
+     * @param smoothing k, the count added to every transition and observed emission
+     * @return compiled model
+     */
+    public HMMModel toModel(double unseenPenalty, double smoothing) {
+        int numTags = tags.size();
+        int numWords = words.size();
+
+        double[] transitions = new double[numTags * numTags];
+        Arrays.fill(transitions, Double.NEGATIVE_INFINITY);
+        for (int prev = 0; prev < numTags; prev++) {
+            double total = smoothing * (numTags - 1);
+            for (int next = 0; next < numTags; next++) total += transitionCounts[prev][next];
+            for (int next = 0; next < numTags; next++) {
+                if (transitionCounts[prev][next] > 0 || (smoothing > 0 && next != 0)) {
+                    transitions[prev * numTags + next] = Math.log((transitionCounts[prev][next] + smoothing) / total);
+                }
+            }
+        }
+
+        int[] emissionOffsets = new int[numWords + 1];
+        for (int w = 0; w < numWords; w++) emissionOffsets[w + 1] = emissionOffsets[w] + emissionTags[w].length;
+        int[] packedTags = new int[emissionOffsets[numWords]];
+        double[] packedScores = new double[emissionOffsets[numWords]];
+        for (int w = 0; w < numWords; w++) {
+            for (int k = 0; k < emissionTags[w].length; k++) {
+                int tag = emissionTags[w][k];
+                packedTags[emissionOffsets[w] + k] = tag;
+                packedScores[emissionOffsets[w] + k] = Math.log((emissionCounts[w][k] + smoothing) / (tagCounts[tag] + smoothing * numWords));
+            }
+        }
+        return new HMMModel(tags.copy(), words.copy(), 0, transitions, emissionOffsets, packedTags, packedScores, unseenPenalty);
+    }
+}
@@ -0,0 +1,418 @@
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compiled hidden Markov model for part of speech tagging.
+ * Tags and words are interned to int ids once, transitions are a dense numTags x numTags
+ * log-prob matrix and emissions are stored per word as a sparse (tag id, log-prob) list,
+ * so decoding is a set of array loops with no string hashing or boxing.
+ * freeze() gives a compact read-only copy for serving large vocabularies.
+ * The tables are never written after construction, so one model can be shared between threads.
+ * The metrics sink and unknown word model are the exception: they are volatile settings, and
+ * changing one affects every thread decoding with the model.
+ */
+public class HMMModel {
+
+    // one decoder of each kind per thread, rebound when the thread moves on to another model, so a
+    // pool thread keeps at most its last model reachable instead of every snapshot it decoded with
+    private static final ThreadLocal<ViterbiDecoder> DECODERS = new ThreadLocal<>();
+    private static final ThreadLocal<LatticeDecoder> LATTICE_DECODERS = new ThreadLocal<>();
+
+    private final Vocabulary tags;           // tag <-> tag id
+    private final WordIndex words;           // word <-> word id
+    private final int start;                 // id of the start tag "#"
+    private final double[] transitions;      // [prev * numTags + next] -> log-prob, -infinity if never seen
+    private final int[] emissionOffsets;     // word id -> first index in emissionTags/emissionScores
+    private final int[] emissionTags;        // tag ids that each word was observed with
+    private final double[] emissionScores;   // matching log-probs, null when quantized
+    private final char[] quantizedScores;    // matching log-probs as multiples of -scoreStep, in a frozen model
+    private final double scoreStep;          // log-prob of one quantization step
+    private final double unseenPenalty;      // score for a word that was never observed with a tag
+    private final int[] successorOffsets;    // prev tag -> first index in successorTags/successorScores
+    private final int[] successorTags;       // tags that follow each tag, transitions that exist only
+    private final double[] successorScores;  // matching log-probs
+    private volatile TaggerMetrics metrics = TaggerMetrics.NONE; // told about every decoded sentence
+    private volatile UnknownWordModel unknownWords; // emissions of unseen words, null for the flat penalty
+    private volatile double[] transposed;    // [next * numTags + prev] -> log-prob, built on first use
+
+    public HMMModel(Vocabulary tags, Vocabulary words, int start, double[] transitions,
+                    int[] emissionOffsets, int[] emissionTags, double[] emissionScores, double unseenPenalty) {
+        this(tags, words, start, transitions, emissionOffsets, emissionTags, emissionScores, null, 0, unseenPenalty);
+    }
+
+    private HMMModel(Vocabulary tags, WordIndex words, int start, double[] transitions, int[] emissionOffsets,
+                     int[] emissionTags, double[] emissionScores, char[] quantizedScores, double scoreStep,
+                     double unseenPenalty) {
+        this.tags = tags;
+        this.words = words;
+        this.start = start;
+        this.transitions = transitions;
+        this.emissionOffsets = emissionOffsets;
+        this.emissionTags = emissionTags;
+        this.emissionScores = emissionScores;
+        this.quantizedScores = quantizedScores;
+        this.scoreStep = scoreStep;
+        this.unseenPenalty = unseenPenalty;
+
+        // successor lists: the finite entries of each transition row, in tag order
+        int numTags = tags.size();
+        successorOffsets = new int[numTags + 1];
+        for (int prev = 0; prev < numTags; prev++) {
+            int count = 0;
+            for (int next = 0; next < numTags; next++) if (transitions[prev * numTags + next] > Double.NEGATIVE_INFINITY) count++;
+            successorOffsets[prev + 1] = successorOffsets[prev] + count;
+        }
+        successorTags = new int[successorOffsets[numTags]];
+        successorScores = new double[successorOffsets[numTags]];
+        for (int prev = 0, k = 0; prev < numTags; prev++) {
+            for (int next = 0; next < numTags; next++) {
+                double score = transitions[prev * numTags + next];
+                if (score > Double.NEGATIVE_INFINITY) {
+                    successorTags[k] = next;
+                    successorScores[k++] = score;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy of this model without its unlikely transitions, so decoding follows fewer edges.
+     * Every tag keeps at least its most likely successor. Emissions and vocabulary are shared.
+     * @param minProbability transitions less likely than this are dropped
+     * @return pruned model
+     */
+    public HMMModel withTransitionFloor(double minProbability) {
+        int numTags = tags.size();
+        double floor = Math.log(minProbability);
+        double[] pruned = transitions.clone();
+        for (int prev = 0; prev < numTags; prev++) {
+            int best = prev * numTags;
+            for (int next = 0; next < numTags; next++) {
+                if (transitions[prev * numTags + next] > transitions[best]) best = prev * numTags + next;
+            }
+            for (int next = 0; next < numTags; next++) {
+                int i = prev * numTags + next;
+                if (i != best && pruned[i] < floor) pruned[i] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        HMMModel model = new HMMModel(tags, words, start, pruned, emissionOffsets, emissionTags, emissionScores,
+                quantizedScores, scoreStep, unseenPenalty);
+        model.setMetrics(metrics);
+        model.setUnknownWordModel(unknownWords);
+        return model;
+    }
+
+    /**
+     * Copy of this model that scores unseen words differently; every table is shared
+     * @param unseenPenalty score for a word that was never observed with a tag
+     * @return model with the new penalty
+     */
+    public HMMModel withUnseenPenalty(double unseenPenalty) {
+        HMMModel model = new HMMModel(tags, words, start, transitions, emissionOffsets, emissionTags, emissionScores,
+                quantizedScores, scoreStep, unseenPenalty);
+        model.setMetrics(metrics);
+        model.setUnknownWordModel(unknownWords);
+        return model;
+    }
+
+    /**
+     * @return number of transitions that exist, the edges of the successor lists
+     */
+    public int numTransitions() {
+        return successorTags.length;
+    }
+
+    /**
+     * Compact read-only copy for serving: the words go into a FrozenVocabulary (word ids change
+     * accordingly) and emission log-probs are quantized to 16 bits, at most half a step off,
+     * where a step is 1/65535 of the lowest log-prob. Transitions are kept exact.
+     * The copy keeps the unknown word model and metrics of this model.
+     * @return frozen model
+     */
+    public HMMModel freeze() {
+        int numWords = words.size();
+        int[] newIds = new int[numWords];
+        FrozenVocabulary frozen = FrozenVocabulary.build(words, newIds);
+
+        double lowest = 0;
+        for (int k = 0; k < emissionOffsets[numWords]; k++) lowest = Math.min(lowest, emissionScore(k));
+        double step = lowest < 0 ? -lowest / Character.MAX_VALUE : 1;
+
+        // emission lists move with their words
+        int[] oldIds = new int[numWords];
+        for (int w = 0; w < numWords; w++) oldIds[newIds[w]] = w;
+        int[] offsets = new int[numWords + 1];
+        for (int w = 0; w < numWords; w++) {
+            offsets[w + 1] = offsets[w] + emissionOffsets[oldIds[w] + 1] - emissionOffsets[oldIds[w]];
+        }
+        int[] packedTags = new int[offsets[numWords]];
+        char[] quantized = new char[offsets[numWords]];
+        for (int w = 0; w < numWords; w++) {
+            for (int k = emissionOffsets[oldIds[w]], j = offsets[w]; j < offsets[w + 1]; k++, j++) {
+                packedTags[j] = emissionTags[k];
+                quantized[j] = (char) Math.round(-emissionScore(k) / step);
+            }
+        }
+        HMMModel model = new HMMModel(tags, frozen, start, transitions, offsets, packedTags, null, quantized, step, unseenPenalty);
+        model.setMetrics(metrics);
+        model.setUnknownWordModel(unknownWords);
+        return model;
+    }
+
+    /**
+     * @param k index into the emission tables
+     * @return emission log-prob, dequantized in a frozen model
+     */
+    private double emissionScore(int k) {
+        return quantizedScores == null ? emissionScores[k] : -quantizedScores[k] * scoreStep;
+    }
+
+    /**
+     * Builds a compiled model from trained transition and observation maps
+     * @param transitionMap prev tag -> next tag -> log-prob
+     * @param observationMap tag -> word -> log-prob
+     * @param startTag tag that every sentence starts from
+     * @param unseenPenalty score for a word that was never observed with a tag
+     * @return compiled model
+     */
+    public static HMMModel compile(Map<String, ? extends Map<String, Double>> transitionMap,
+                                   Map<String, ? extends Map<String, Double>> observationMap,
+                                   String startTag, double unseenPenalty) {
+        // intern every tag that appears anywhere in the two maps
+        Vocabulary tags = new Vocabulary();
+        int start = tags.add(startTag);
+        for (String prev : transitionMap.keySet()) {
+            tags.add(prev);
+            for (String next : transitionMap.get(prev).keySet()) tags.add(next);
+        }
+        for (String tag : observationMap.keySet()) tags.add(tag);
+        int numTags = tags.size();
+
+        double[] transitions = new double[numTags * numTags];
+        Arrays.fill(transitions, Double.NEGATIVE_INFINITY);
+        for (String prev : transitionMap.keySet()) {
+            int p = tags.id(prev);
+            for (Map.Entry<String, Double> next : transitionMap.get(prev).entrySet()) {
+                transitions[p * numTags + tags.id(next.getKey())] = next.getValue();
+            }
+        }
+
+        // count the tags each word was seen with, then lay the emissions out word by word
+        Vocabulary words = new Vocabulary();
+        int entries = 0;
+        for (Map<String, Double> observed : observationMap.values()) {
+            for (String word : observed.keySet()) words.add(word);
+            entries += observed.size();
+        }
+        int[] emissionOffsets = new int[words.size() + 1];
+        for (Map<String, Double> observed : observationMap.values()) {
+            for (String word : observed.keySet()) emissionOffsets[words.id(word) + 1]++;
+        }
+        for (int w = 0; w < words.size(); w++) emissionOffsets[w + 1] += emissionOffsets[w];
+
+        int[] fill = Arrays.copyOf(emissionOffsets, words.size());
+        int[] emissionTags = new int[entries];
+        double[] emissionScores = new double[entries];
+        for (String tag : observationMap.keySet()) {
+            int t = tags.id(tag);
+            for (Map.Entry<String, Double> observed : observationMap.get(tag).entrySet()) {
+                int slot = fill[words.id(observed.getKey())]++;
+                emissionTags[slot] = t;
+                emissionScores[slot] = observed.getValue();
+            }
+        }
+        return new HMMModel(tags, words, start, transitions, emissionOffsets, emissionTags, emissionScores, unseenPenalty);
+    }
+
+    public int numTags() {
+        return tags.size();
+    }
+
+    public int startTag() {
+        return start;
+    }
+
+    /**
+     * @param id
+     * @return tag name, or null for a negative id (no path reached that token)
+     */
+    public String tagName(int id) {
+        return id < 0 ? null : tags.get(id);
+    }
+
+    public int tagId(String tag) {
+        return tags.id(tag);
+    }
+
+    /**
+     * @param word
+     * @return word id, or -1 if the word was never seen in training
+     */
+    public int wordId(String word) {
+        return words.id(word);
+    }
+
+    /**
+     * Looks a token up in lower case without copying it out of its line
+     * @param tokens
+     * @param token
+     * @return word id, or -1 if the word was never seen in training
+     */
+    public int wordId(Tokenizer tokens, int token) {
+        return tokens.lookup(words, token, true);
+    }
+
+    public double transition(int prev, int next) {
+        return transitions[prev * tags.size() + next];
+    }
+
+    /**
+     * @return the dense transition table itself, indexed [prev * numTags + next]; must not be modified
+     */
+    double[] transitionTable() {
+        return transitions;
+    }
+
+    /**
+     * @return the transition table transposed, indexed [next * numTags + prev], so the scores of
+     * every predecessor of a tag are contiguous; built once on first use, must not be modified
+     */
+    double[] transposedTransitionTable() {
+        double[] table = transposed;
+        if (table == null) {
+            int numTags = tags.size();
+            table = new double[numTags * numTags];
+            for (int prev = 0; prev < numTags; prev++) {
+                for (int next = 0; next < numTags; next++) table[next * numTags + prev] = transitions[prev * numTags + next];
+            }
+            transposed = table;
+        }
+        return table;
+    }
+
+    int[] successorOffsetTable() {
+        return successorOffsets;
+    }
+
+    int[] successorTagTable() {
+        return successorTags;
+    }
+
+    double[] successorScoreTable() {
+        return successorScores;
+    }
+
+    Vocabulary tagVocabulary() {
+        return tags;
+    }
+
+    WordIndex wordVocabulary() {
+        return words;
+    }
+
+    int[] emissionOffsetTable() {
+        return emissionOffsets;
+    }
+
+    int[] emissionTagTable() {
+        return emissionTags;
+    }
+
+    /**
+     * In a frozen model every call allocates and fills a new dequantized array, 8 bytes per emission.
+     * It is not cached, since keeping it would undo the 16-bit quantization; decoders go through
+     * emissions() instead, and only one-off callers such as ModelIO.write use this.
+     * @return emission log-probs, indexed like emissionTagTable(); a dequantized copy in a frozen model
+     */
+    double[] emissionScoreTable() {
+        if (quantizedScores != null) {
+            double[] scores = new double[quantizedScores.length];
+            for (int k = 0; k < scores.length; k++) scores[k] = emissionScore(k);
+            return scores;
+        }
+        return emissionScores;
+    }
+
+    public double unseenPenalty() {
+        return unseenPenalty;
+    }
+
+    /**
+     * Writes the emission score of a word for every tag into out
+     * @param wordId word id, or -1 for an unseen word
+     * @param out array of length numTags
+     */
+    public void emissions(int wordId, double[] out) {
+        Arrays.fill(out, 0, tags.size(), unseenPenalty);
+        if (wordId < 0) return;
+        for (int k = emissionOffsets[wordId]; k < emissionOffsets[wordId + 1]; k++) {
+            out[emissionTags[k]] = emissionScore(k);
+        }
+    }
+
+    /**
+     * Attaches a metrics sink to every decoder of this model
+     * @param metrics sink, TaggerMetrics.NONE to stop measuring
+     */
+    public void setMetrics(TaggerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public TaggerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Scores unseen words by suffix and shape instead of the flat unseen penalty, in every decoder
+     * that sees the word's text (not when decoding bare word ids)
+     * @param unknownWords trained on the same data as this model, null to go back to the penalty
+     * @throws IllegalArgumentException if its emission columns do not have one score per tag of this model
+     */
+    public void setUnknownWordModel(UnknownWordModel unknownWords) {
+        if (unknownWords != null && unknownWords.numTags() != tags.size()) {
+            throw new IllegalArgumentException("Unknown word model has " + unknownWords.numTags()
+                    + " tags, the model has " + tags.size());
+        }
+        this.unknownWords = unknownWords;
+    }
+
+    public UnknownWordModel unknownWordModel() {
+        return unknownWords;
+    }
+
+    /**
+     * @return decoder owned by the calling thread, its scratch lattice is reused between calls as
+     *         long as the thread keeps decoding with this model
+     */
+    public ViterbiDecoder decoder() {
+        ViterbiDecoder decoder = DECODERS.get();
+        if (decoder == null || decoder.model() != this) {
+            decoder = new ViterbiDecoder(this);
+            DECODERS.set(decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * @return k best and posterior decoder owned by the calling thread, reused like decoder()
+     */
+    public LatticeDecoder latticeDecoder() {
+        LatticeDecoder decoder = LATTICE_DECODERS.get();
+        if (decoder == null || decoder.model() != this) {
+            decoder = new LatticeDecoder(this);
+            LATTICE_DECODERS.set(decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Viterbi algorithm over the compiled tables
+     * @param words tokens, already normalized the way the model was trained
+     * @return most likely tag id for every token
+     */
+    public int[] decode(String[] words) {
+        int[] path = new int[words.length];
+        decoder().decode(words, path);
+        return path;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of HdrHistogram:
+ * every power of two is split into 32 linear sub-buckets, so any recorded value is
+ * reported within about 3% over the whole range of a long. Recording is one atomic increment.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param value
+     * @return bucket holding the value
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket
+     * @return smallest value that lands in the bucket
+     */
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    public void record(long value) {
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param p fraction between 0 and 1, e.g. 0.99
+     * @return approximate value at that percentile, 0 if nothing was recorded
+     */
+    public long percentile(double p) {
+        long n = 0;
+        for (int b = 0; b < buckets.length(); b++) n += buckets.get(b);
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(p * n);
+        long seen = 0;
+        for (int b = 0; b < buckets.length(); b++) {
+            seen += buckets.get(b);
+            if (seen >= rank && seen > 0) return lowestValue(b);
+        }
+        return lowestValue(buckets.length() - 1);
+    }
+}
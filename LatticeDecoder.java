@@ -0,0 +1,483 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Decoder for callers that need more than the single best path: the k best tag sequences
+ * (list Viterbi, keeping the k best partial paths into every state) and per-token tag
+ * posteriors (forward-backward). Both walk the model's successor lists like ViterbiDecoder.
+ *
+ * Forward and backward sums are log-sum-exps: each column is scaled by its best score,
+ * summed in probability space and taken back to logs, so nothing underflows.
+ *
+ * A lattice of back pointers or forward scores is kept for at most maxLatticeCells cells. A
+ * longer input is split into segments of about sqrt(n) tokens. Only the column before each
+ * segment is kept on the way forward, and a segment is recomputed from it when the backtrace
+ * or backward pass reaches it. That is O(sqrt(n)) memory for about one more forward pass.
+ * Buffers grow to the largest input seen and are reused, so warmed up decoding allocates nothing.
+ * Not thread-safe: use one decoder per thread (HMMModel.latticeDecoder()).
+ */
+public class LatticeDecoder {
+
+    public static final int MAX_LATTICE_CELLS = 1 << 20; // default lattice size before checkpointing
+
+    private final HMMModel model;
+    private final int numTags;
+    private final int[] successorOffsets;   // shared with the model, read only
+    private final int[] successorTags;      // shared with the model, read only
+    private final double[] successorScores; // shared with the model, read only
+    private final double[] successorProbs;  // exp of successorScores, for the sums
+    private final int maxLatticeCells;
+
+    private double[][] checkpoints;     // [segment][cell] -> column before the segment
+    private double[][] columns;         // forward columns of the current segment
+    private int[][] backs;              // [token in segment][tag * k + rank] -> previous tag * k + rank
+    private double[][] rolling;         // two score columns for the k best search
+    private double[] beta;              // backward column
+    private double[] weights;           // scratch: scaled probabilities of the next column
+    private double[] bestScores;        // the k best final scores
+    private int[] bestStates;           // and their states
+    private final double[] emissionScratch;
+
+    private String[] words;             // input being decoded, as in ViterbiDecoder
+    private Tokenizer tokens;
+    private int[] wordIds;
+    private UnknownWordModel unknownWords;
+
+    /**
+     * @param model
+     */
+    public LatticeDecoder(HMMModel model) {
+        this(model, MAX_LATTICE_CELLS);
+    }
+
+    /**
+     * @param model
+     * @param maxLatticeCells cells kept for a whole input before switching to sqrt(n) checkpoints
+     */
+    public LatticeDecoder(HMMModel model, int maxLatticeCells) {
+        this.model = model;
+        this.numTags = model.numTags();
+        this.successorOffsets = model.successorOffsetTable();
+        this.successorTags = model.successorTagTable();
+        this.successorScores = model.successorScoreTable();
+        this.successorProbs = new double[successorScores.length];
+        for (int s = 0; s < successorScores.length; s++) successorProbs[s] = Math.exp(successorScores[s]);
+        this.maxLatticeCells = maxLatticeCells;
+        this.checkpoints = new double[0][];
+        this.columns = new double[0][];
+        this.backs = new int[0][];
+        this.rolling = new double[2][];
+        this.beta = new double[numTags];
+        this.weights = new double[numTags];
+        this.bestScores = new double[0];
+        this.bestStates = new int[0];
+        this.emissionScratch = new double[numTags];
+        this.wordIds = new int[16];
+    }
+
+    HMMModel model() {
+        return model;
+    }
+
+    /**
+     * The k most likely tag sequences of a pre-tokenized sentence
+     * @param words tokens, already normalized the way the model was trained
+     * @param length number of tokens to tag
+     * @param k number of sequences wanted
+     * @param paths receives the sequences, best first; k rows of at least length tag ids
+     * @param pathScores receives the log-probability of each sequence
+     * @return number of sequences found, fewer than k if the lattice has fewer paths
+     */
+    public int nBest(String[] words, int length, int k, int[][] paths, double[] pathScores) {
+        lookup(words, null, length);
+        return nBest(length, k, paths, pathScores);
+    }
+
+    /**
+     * The k most likely tag sequences of a tokenized line, looked up in lower case
+     * @param tokens tokenizer holding the line
+     * @param k number of sequences wanted
+     * @param paths receives the sequences, best first; k rows of at least tokens.count() tag ids
+     * @param pathScores receives the log-probability of each sequence
+     * @return number of sequences found, fewer than k if the lattice has fewer paths
+     */
+    public int nBest(Tokenizer tokens, int k, int[][] paths, double[] pathScores) {
+        lookup(null, tokens, tokens.count());
+        return nBest(tokens.count(), k, paths, pathScores);
+    }
+
+    /**
+     * Posterior probability of every tag at every token of a pre-tokenized sentence
+     * @param words tokens, already normalized the way the model was trained
+     * @param length number of tokens
+     * @param out receives P(tag | sentence) at [token * numTags + tag]
+     * @return log-probability of the sentence, -infinity if no tag sequence reaches its end
+     */
+    public double posteriors(String[] words, int length, double[] out) {
+        lookup(words, null, length);
+        return posteriors(length, out);
+    }
+
+    /**
+     * Posterior probability of every tag at every token of a tokenized line, looked up in lower case
+     * @param tokens tokenizer holding the line
+     * @param out receives P(tag | sentence) at [token * numTags + tag]
+     * @return log-probability of the sentence, -infinity if no tag sequence reaches its end
+     */
+    public double posteriors(Tokenizer tokens, double[] out) {
+        lookup(null, tokens, tokens.count());
+        return posteriors(tokens.count(), out);
+    }
+
+    private void lookup(String[] words, Tokenizer tokens, int length) {
+        this.words = words;
+        this.tokens = tokens;
+        this.unknownWords = model.unknownWordModel();
+        if (length > wordIds.length) wordIds = new int[Math.max(length, wordIds.length * 2)];
+        for (int i = 0; i < length; i++) wordIds[i] = words != null ? model.wordId(words[i]) : model.wordId(tokens, i);
+    }
+
+    /**
+     * @param i token
+     * @return emission scores of the token for every tag, valid until the next call
+     */
+    private double[] emission(int i) {
+        int word = wordIds[i];
+        if (word < 0 && unknownWords != null && words != null) return unknownWords.emissions(words[i], 0, words[i].length());
+        if (word < 0 && unknownWords != null && tokens != null) {
+            return unknownWords.emissions(tokens.text(), tokens.start(i), tokens.end(i));
+        }
+        model.emissions(word, emissionScratch);
+        return emissionScratch;
+    }
+
+    /**
+     * @param length tokens in the input
+     * @param cells cells per token
+     * @return tokens per segment: the whole input if its lattice fits, about sqrt(length) otherwise
+     */
+    private int segmentLength(int length, int cells) {
+        if ((long) length * cells <= maxLatticeCells) return Math.max(1, length);
+        return (int) Math.ceil(Math.sqrt(length));
+    }
+
+    /**
+     * List Viterbi: every state keeps its k best partial paths, sorted, at [tag * k + rank]
+     */
+    private int nBest(int length, int k, int[][] paths, double[] pathScores) {
+        int cells = numTags * k;
+        int segment = segmentLength(length, cells);
+        int segments = (length + segment - 1) / segment;
+        checkpoints = ensure(checkpoints, Math.max(1, segments), cells);
+        backs = ensure(backs, segment, cells);
+        rolling = ensure(rolling, 2, cells);
+
+        double[] start = checkpoints[0];
+        Arrays.fill(start, 0, cells, Double.NEGATIVE_INFINITY);
+        start[model.startTag() * k] = 0.0;
+        double[] last = start;
+        for (int c = 0; c < segments; c++) {
+            last = forwardBest(c, segment, length, k);
+            if (c + 1 < segments) System.arraycopy(last, 0, checkpoints[c + 1], 0, cells);
+        }
+
+        // the k best final states
+        if (bestScores.length < k) {
+            bestScores = new double[k];
+            bestStates = new int[k];
+        }
+        Arrays.fill(bestScores, 0, k, Double.NEGATIVE_INFINITY);
+        for (int state = 0; state < cells; state++) {
+            double score = last[state];
+            if (!(score > bestScores[k - 1])) continue;
+            int j = k - 1;
+            while (j > 0 && score > bestScores[j - 1]) {
+                bestScores[j] = bestScores[j - 1];
+                bestStates[j] = bestStates[j - 1];
+                j--;
+            }
+            bestScores[j] = score;
+            bestStates[j] = state;
+        }
+        int found = 0;
+        while (found < k && bestScores[found] > Double.NEGATIVE_INFINITY) found++;
+        if (length == 0 || found == 0) return 0;
+
+        // follow the back pointers, one segment at a time from the end
+        for (int c = segments - 1; c >= 0; c--) {
+            if (c < segments - 1) forwardBest(c, segment, length, k);
+            int segmentStart = c * segment;
+            for (int i = Math.min(length, segmentStart + segment) - 1; i >= segmentStart; i--) {
+                int[] back = backs[i - segmentStart];
+                for (int p = 0; p < found; p++) {
+                    paths[p][i] = bestStates[p] / k;
+                    bestStates[p] = back[bestStates[p]];
+                }
+            }
+        }
+        System.arraycopy(bestScores, 0, pathScores, 0, found);
+        return found;
+    }
+
+    /**
+     * Runs one segment of the k best search from its checkpoint, filling its back pointers
+     * @return scores of the segment's last column
+     */
+    private double[] forwardBest(int c, int segment, int length, int k) {
+        int cells = numTags * k;
+        double[] curr = checkpoints[c];
+        int segmentStart = c * segment;
+        for (int i = segmentStart; i < Math.min(length, segmentStart + segment); i++) {
+            double[] next = rolling[i & 1];
+            int[] back = backs[i - segmentStart];
+            double[] emission = emission(i);
+            Arrays.fill(next, 0, cells, Double.NEGATIVE_INFINITY);
+            for (int prev = 0; prev < numTags; prev++) {
+                if (curr[prev * k] == Double.NEGATIVE_INFINITY) continue;
+                for (int s = successorOffsets[prev]; s < successorOffsets[prev + 1]; s++) {
+                    int tag = successorTags[s];
+                    double edge = successorScores[s] + emission[tag];
+                    if (k == 1) {
+                        // plain Viterbi, without the rank bookkeeping
+                        double score = curr[prev] + edge;
+                        if (score > next[tag]) {
+                            next[tag] = score;
+                            back[tag] = prev;
+                        }
+                        continue;
+                    }
+                    int first = tag * k, end = first + k;
+                    for (int r = 0; r < k; r++) {
+                        double score = curr[prev * k + r] + edge;
+                        // ranks of prev are sorted, so once one misses the list the rest do too
+                        if (!(score > next[end - 1])) break;
+                        int j = end - 1;
+                        while (j > first && score > next[j - 1]) {
+                            next[j] = next[j - 1];
+                            back[j] = back[j - 1];
+                            j--;
+                        }
+                        next[j] = score;
+                        back[j] = prev * k + r;
+                    }
+                }
+            }
+            curr = next;
+        }
+        return curr;
+    }
+
+    /**
+     * Forward-backward: P(tag at i | sentence) = exp(alpha_i(tag) + beta_i(tag) - log P(sentence))
+     */
+    private double posteriors(int length, double[] out) {
+        int segment = segmentLength(length, numTags);
+        int segments = (length + segment - 1) / segment;
+        checkpoints = ensure(checkpoints, Math.max(1, segments), numTags);
+        columns = ensure(columns, segment, numTags);
+
+        double[] start = checkpoints[0];
+        Arrays.fill(start, 0, numTags, Double.NEGATIVE_INFINITY);
+        start[model.startTag()] = 0.0;
+        double[] last = start;
+        for (int c = 0; c < segments; c++) {
+            last = forwardSums(c, segment, length);
+            if (c + 1 < segments) System.arraycopy(last, 0, checkpoints[c + 1], 0, numTags);
+        }
+        double logZ = logSumExp(last);
+        if (length == 0 || logZ == Double.NEGATIVE_INFINITY) {
+            Arrays.fill(out, 0, length * numTags, 0.0);
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // beta of the last token is log 1: there is no end transition
+        Arrays.fill(beta, 0.0);
+        for (int c = segments - 1; c >= 0; c--) {
+            if (c < segments - 1) forwardSums(c, segment, length);
+            int segmentStart = c * segment;
+            for (int i = Math.min(length, segmentStart + segment) - 1; i >= segmentStart; i--) {
+                if (i < length - 1) backward(emission(i + 1));
+                double[] alpha = columns[i - segmentStart];
+                for (int t = 0; t < numTags; t++) {
+                    double score = alpha[t] + beta[t];
+                    out[i * numTags + t] = score == Double.NEGATIVE_INFINITY ? 0.0 : Math.exp(score - logZ);
+                }
+            }
+        }
+        return logZ;
+    }
+
+    /**
+     * Runs one segment of the forward pass from its checkpoint into columns
+     * @return the segment's last column
+     */
+    private double[] forwardSums(int c, int segment, int length) {
+        double[] curr = checkpoints[c];
+        int segmentStart = c * segment;
+        for (int i = segmentStart; i < Math.min(length, segmentStart + segment); i++) {
+            double[] next = columns[i - segmentStart];
+            double[] emission = emission(i);
+            double max = Double.NEGATIVE_INFINITY;
+            for (int t = 0; t < numTags; t++) max = Math.max(max, curr[t]);
+            Arrays.fill(next, 0, numTags, 0.0);
+            if (max > Double.NEGATIVE_INFINITY) {
+                for (int prev = 0; prev < numTags; prev++) {
+                    if (curr[prev] == Double.NEGATIVE_INFINITY) continue;
+                    double p = Math.exp(curr[prev] - max);
+                    for (int s = successorOffsets[prev]; s < successorOffsets[prev + 1]; s++) {
+                        next[successorTags[s]] += p * successorProbs[s];
+                    }
+                }
+            }
+            for (int t = 0; t < numTags; t++) {
+                next[t] = next[t] == 0 ? Double.NEGATIVE_INFINITY : Math.log(next[t]) + max + emission[t];
+            }
+            curr = next;
+        }
+        return curr;
+    }
+
+    /**
+     * Steps beta back over one token
+     * @param emission emission scores of the token after the new beta column
+     */
+    private void backward(double[] emission) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < numTags; t++) max = Math.max(max, emission[t] + beta[t]);
+        for (int t = 0; t < numTags; t++) weights[t] = Math.exp(emission[t] + beta[t] - max);
+        for (int prev = 0; prev < numTags; prev++) {
+            double sum = 0;
+            for (int s = successorOffsets[prev]; s < successorOffsets[prev + 1]; s++) {
+                sum += successorProbs[s] * weights[successorTags[s]];
+            }
+            beta[prev] = sum == 0 ? Double.NEGATIVE_INFINITY : Math.log(sum) + max;
+        }
+    }
+
+    private double logSumExp(double[] column) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < numTags; t++) max = Math.max(max, column[t]);
+        if (max == Double.NEGATIVE_INFINITY) return max;
+        double sum = 0;
+        for (int t = 0; t < numTags; t++) sum += Math.exp(column[t] - max);
+        return Math.log(sum) + max;
+    }
+
+    // grow a set of reusable rows to at least count rows of at least cells entries
+    private static double[][] ensure(double[][] rows, int count, int cells) {
+        if (rows.length < count) rows = Arrays.copyOf(rows, Math.max(count, rows.length * 2));
+        for (int i = 0; i < count; i++) if (rows[i] == null || rows[i].length < cells) rows[i] = new double[cells];
+        return rows;
+    }
+
+    private static int[][] ensure(int[][] rows, int count, int cells) {
+        if (rows.length < count) rows = Arrays.copyOf(rows, Math.max(count, rows.length * 2));
+        for (int i = 0; i < count; i++) if (rows[i] == null || rows[i].length < cells) rows[i] = new int[cells];
+        return rows;
+    }
+
+    /**
+     * Checks the k best and posterior modes against ViterbiDecoder on the Brown test set,
+     * checkpointed against whole lattices on the test set as one long input, and compares speed
+     */
+    public static void main(String[] args) throws Exception {
+        POS pos = new POS();
+        pos.train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+        HMMModel model = pos.getModel();
+        int numTags = model.numTags();
+
+        ArrayList<String[]> sentences = new ArrayList<>();
+        ArrayList<String[]> tags = new ArrayList<>();
+        BufferedReader testSentences = new BufferedReader(new FileReader("PS5/brown-test-sentences.txt"));
+        BufferedReader testTags = new BufferedReader(new FileReader("PS5/brown-test-tags.txt"));
+        String line, tagLine;
+        int tokens = 0;
+        while ((line = testSentences.readLine()) != null && (tagLine = testTags.readLine()) != null) {
+            String[] words = line.toLowerCase().split(" ");
+            if (words.length != tagLine.split(" ").length) continue;
+            sentences.add(words);
+            tags.add(tagLine.split(" "));
+            tokens += words.length;
+        }
+        testSentences.close();
+        testTags.close();
+
+        ViterbiDecoder viterbi = new ViterbiDecoder(model);
+        LatticeDecoder lattice = new LatticeDecoder(model);
+        int k = 5;
+        int[] path = new int[1024];
+        int[][] paths = new int[k][1024];
+        double[] pathScores = new double[k];
+        double[] posteriors = new double[1024 * numTags];
+
+        // the best of the k best is the Viterbi path; the posterior argmax is scored too
+        int sameBest = 0, ordered = 0, viterbiCorrect = 0, posteriorCorrect = 0;
+        double worstSum = 0;
+        for (int s = 0; s < sentences.size(); s++) {
+            String[] words = sentences.get(s);
+            viterbi.decode(words, path);
+            int found = lattice.nBest(words, words.length, k, paths, pathScores);
+            if (found > 0 && Arrays.equals(path, 0, words.length, paths[0], 0, words.length)) sameBest++;
+            boolean sorted = true;
+            for (int p = 1; p < found; p++) sorted &= pathScores[p] <= pathScores[p - 1];
+            if (sorted) ordered++;
+            lattice.posteriors(words, words.length, posteriors);
+            for (int i = 0; i < words.length; i++) {
+                int best = 0;
+                double sum = 0;
+                for (int t = 0; t < numTags; t++) {
+                    sum += posteriors[i * numTags + t];
+                    if (posteriors[i * numTags + t] > posteriors[i * numTags + best]) best = t;
+                }
+                worstSum = Math.max(worstSum, Math.abs(sum - 1));
+                if (tags.get(s)[i].equals(model.tagName(path[i]))) viterbiCorrect++;
+                if (tags.get(s)[i].equals(model.tagName(best))) posteriorCorrect++;
+            }
+        }
+        System.out.printf("%d sentences: best of %d = Viterbi path in %d, scores sorted in %d%n",
+                sentences.size(), k, sameBest, ordered);
+        System.out.printf("Viterbi %.2f%%, posterior argmax %.2f%%, posteriors sum to 1 within %.1e%n",
+                100.0 * viterbiCorrect / tokens, 100.0 * posteriorCorrect / tokens, worstSum);
+
+        // the whole test set as one input: whole lattices against sqrt(n) checkpoints
+        String[] all = new String[tokens];
+        int filled = 0;
+        for (String[] words : sentences) {
+            System.arraycopy(words, 0, all, filled, words.length);
+            filled += words.length;
+        }
+        LatticeDecoder whole = new LatticeDecoder(model, Integer.MAX_VALUE);
+        LatticeDecoder checkpointed = new LatticeDecoder(model, 1 << 16);
+        int[][] wholePaths = new int[k][tokens], checkpointedPaths = new int[k][tokens];
+        double[] wholeScores = new double[k], checkpointedScores = new double[k];
+        double[] wholePosteriors = new double[tokens * numTags], checkpointedPosteriors = new double[tokens * numTags];
+        whole.nBest(all, tokens, k, wholePaths, wholeScores);
+        checkpointed.nBest(all, tokens, k, checkpointedPaths, checkpointedScores);
+        whole.posteriors(all, tokens, wholePosteriors);
+        checkpointed.posteriors(all, tokens, checkpointedPosteriors);
+        System.out.printf("%d tokens as one input: checkpointed k best %s, posteriors %s; lattice cells %d -> %d%n",
+                tokens, Arrays.deepEquals(wholePaths, checkpointedPaths) && Arrays.equals(wholeScores, checkpointedScores)
+                        ? "identical" : "DIFFERENT",
+                Arrays.equals(wholePosteriors, checkpointedPosteriors) ? "identical" : "DIFFERENT",
+                (long) tokens * numTags * k, 2L * (long) Math.ceil(Math.sqrt(tokens)) * numTags * k);
+
+        // speed per sentence
+        for (int pass = 0; pass < 5; pass++) {
+            long startTime = System.nanoTime();
+            for (String[] words : sentences) viterbi.decode(words, path);
+            double viterbiRate = tokens / ((System.nanoTime() - startTime) / 1e9);
+            StringBuilder rates = new StringBuilder(String.format("Viterbi %.0f", viterbiRate));
+            for (int n : new int[]{1, 2, 5}) {
+                startTime = System.nanoTime();
+                for (String[] words : sentences) lattice.nBest(words, words.length, n, paths, pathScores);
+                rates.append(String.format(", %d best %.0f", n, tokens / ((System.nanoTime() - startTime) / 1e9)));
+            }
+            startTime = System.nanoTime();
+            for (String[] words : sentences) lattice.posteriors(words, words.length, posteriors);
+            rates.append(String.format(", posteriors %.0f", tokens / ((System.nanoTime() - startTime) / 1e9)));
+            if (pass == 4) System.out.println(rates + " tokens/sec");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table from long keys to long counts, with no boxing.
+ * Used for sparse count tables such as trigram counts, where a dense array would be tags^3 long.
+ */
+public class LongCounter {
+
+    private static final long EMPTY = Long.MIN_VALUE; // marks a free slot, never a valid key
+
+    private long[] keys;
+    private long[] counts;
+    private int size;
+
+    public LongCounter() {
+        keys = new long[64];
+        counts = new long[64];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Finds the slot of a key, or the free slot where it would go
+     * @param key
+     * @return slot index
+     */
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = (int) (mix(key) & mask);
+        while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    static long mix(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return key ^ (key >>> 32);
+    }
+
+    /**
+     * Adds to the count of a key
+     * @param key any value except Long.MIN_VALUE
+     * @param count
+     */
+    public void add(long key, long count) {
+        int i = slot(key);
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                grow();
+                i = slot(key);
+            }
+        }
+        counts[i] += count;
+    }
+
+    /**
+     * @param key
+     * @return count of the key, 0 if it was never added
+     */
+    public long get(long key) {
+        int i = slot(key);
+        return keys[i] == EMPTY ? 0 : counts[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of slots; keyAt/countAt are valid for every slot index below this
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param slot
+     * @return true if the slot holds a key
+     */
+    public boolean used(int slot) {
+        return keys[slot] != EMPTY;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long countAt(int slot) {
+        return counts[slot];
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = new long[oldKeys.length * 2];
+        counts = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == EMPTY) continue;
+            int i = slot(oldKeys[j]);
+            keys[i] = oldKeys[j];
+            counts[i] = oldCounts[j];
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Inner loop of the Viterbi recurrence in log space: for one next tag, the predecessor that
+ * maximizes score[prev] + transition[prev][next]. Run over the transposed transition matrix,
+ * so both operands are contiguous arrays and the loop can be vectorized.
+ */
+public interface MaxPlusKernel {
+
+    /**
+     * Plain Java loop, always available
+     */
+    MaxPlusKernel SCALAR = (a, b, bOffset, n) -> {
+        double best = Double.NEGATIVE_INFINITY;
+        int arg = -1;
+        for (int i = 0; i < n; i++) {
+            double sum = a[i] + b[bOffset + i];
+            if (sum > best) {
+                best = sum;
+                arg = i;
+            }
+        }
+        return arg;
+    };
+
+    /**
+     * @param a first operand, e.g. scores of the previous column
+     * @param b second operand, e.g. the transposed transition table
+     * @param bOffset index in b matching a[0]
+     * @param n number of elements
+     * @return smallest i maximizing a[i] + b[bOffset + i], or -1 if every sum is -infinity
+     */
+    int argMaxPlus(double[] a, double[] b, int bOffset, int n);
+
+    /**
+     * @return the Vector API kernel if VectorMaxPlus.class is on the class path (compiled from
+     * vector/ with -d .) and the jdk.incubator.vector module is present at run time
+     * (java --add-modules jdk.incubator.vector), otherwise SCALAR; loaded once
+     */
+    static MaxPlusKernel preferred() {
+        return Preferred.KERNEL;
+    }
+
+    /**
+     * Holds the kernel picked on the first call to preferred(), so a fallback is reported once
+     */
+    final class Preferred {
+        static final MaxPlusKernel KERNEL = load();
+
+        private Preferred() {
+        }
+
+        private static MaxPlusKernel load() {
+            try {
+                return (MaxPlusKernel) Class.forName("VectorMaxPlus").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.out.println("Warning: Vector API kernel unavailable (" + e + "), using the scalar kernel.");
+                return SCALAR;
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary model files, so a tagger can start without retraining.
+ *
+ * Layout (little endian, every table starts on an 8 byte boundary):
+ *   int magic "HMM1", int version, int numTags, int numWords, int entries, int start, double unseenPenalty
+ *   tag strings, word strings: int[count + 1] byte offsets, then the UTF-8 bytes
+ *   double[numTags * numTags] transitions
+ *   int[numWords + 1] emission offsets, int[entries] emission tags, double[entries] emission scores
+ *   int suffix trie nodes (0 when the model has no UnknownWordModel), int 0, double floor,
+ *   then, if there are nodes: int[nodes] parent node, int[nodes] edge char,
+ *   double[nodes * numTags] suffix scores, double[SHAPES * numTags] shape scores
+ *
+ * Version 1 files end after the emission scores; they load with the flat unseen penalty.
+ *
+ * Files are read through FileChannel.map, so loading is a bulk copy of each table out of
+ * the page cache and costs milliseconds instead of a pass over the corpus. The page cache
+ * copy is shared by every process that maps the file; the heap copies are per process.
+ */
+public class ModelIO {
+
+    public static final int MAGIC = 0x484d4d31; // "HMM1"
+    public static final int VERSION = 2;
+
+    /**
+     * Writes a model to a file
+     * @param model
+     * @param path
+     * @throws IOException
+     */
+    public static void write(HMMModel model, String path) throws IOException {
+        byte[][] tagBytes = utf8(model.tagVocabulary());
+        byte[][] wordBytes = utf8(model.wordVocabulary());
+        double[] transitions = model.transitionTable();
+        int[] emissionOffsets = model.emissionOffsetTable();
+        int[] emissionTags = model.emissionTagTable();
+        double[] emissionScores = model.emissionScoreTable();
+        UnknownWordModel unknownWords = model.unknownWordModel();
+        int nodes = unknownWords == null ? 0 : unknownWords.size();
+
+        long size = 32 + stringsSize(tagBytes) + stringsSize(wordBytes) + 8L * transitions.length
+                + align(4L * emissionOffsets.length) + align(4L * emissionTags.length) + 8L * emissionScores.length
+                + 16 + 2 * align(4L * nodes);
+        if (nodes > 0) size += 8L * (nodes + UnknownWordModel.SHAPES) * model.numTags();
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(size);
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION).putInt(model.numTags()).putInt(emissionOffsets.length - 1)
+                    .putInt(emissionTags.length).putInt(model.startTag()).putDouble(model.unseenPenalty());
+            putStrings(out, tagBytes);
+            putStrings(out, wordBytes);
+            out.asDoubleBuffer().put(transitions);
+            out.position(out.position() + 8 * transitions.length);
+            putInts(out, emissionOffsets);
+            putInts(out, emissionTags);
+            out.asDoubleBuffer().put(emissionScores);
+            out.position(out.position() + 8 * emissionScores.length);
+            out.putInt(nodes).putInt(0).putDouble(unknownWords == null ? 0 : unknownWords.floor());
+            if (nodes > 0) {
+                putInts(out, unknownWords.parentTable());
+                char[] chars = unknownWords.charTable();
+                int[] charInts = new int[nodes];
+                for (int node = 0; node < nodes; node++) charInts[node] = chars[node];
+                putInts(out, charInts);
+                out.asDoubleBuffer().put(unknownWords.nodeScoreTable());
+                out.position(out.position() + 8 * nodes * model.numTags());
+                out.asDoubleBuffer().put(unknownWords.shapeScoreTable());
+            }
+            out.force();
+        }
+    }
+
+    /**
+     * Maps a model file and loads it
+     * @param path
+     * @return model
+     * @throws IOException if the file is not a model file of this or an earlier version
+     */
+    public static HMMModel read(String path) throws IOException {
+        return read(path, TaggerMetrics.NONE);
+    }
+
+    /**
+     * Maps a model file and loads it, reporting the load time
+     * @param path
+     * @param metrics told how long the load took, and attached to the loaded model
+     * @return model
+     * @throws IOException if the file is not a model file of this or an earlier version
+     */
+    public static HMMModel read(String path, TaggerMetrics metrics) throws IOException {
+        long startTime = System.nanoTime();
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            if (in.getInt() != MAGIC) throw new IOException(path + " is not a model file");
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException(path + " has model version " + version + ", expected 1 to " + VERSION);
+            }
+            int numTags = in.getInt();
+            int numWords = in.getInt();
+            int entries = in.getInt();
+            int start = in.getInt();
+            double unseenPenalty = in.getDouble();
+
+            Vocabulary tags = getStrings(in, numTags);
+            Vocabulary words = getStrings(in, numWords);
+            double[] transitions = new double[numTags * numTags];
+            in.asDoubleBuffer().get(transitions);
+            in.position(in.position() + 8 * transitions.length);
+            int[] emissionOffsets = getInts(in, numWords + 1);
+            int[] emissionTags = getInts(in, entries);
+            double[] emissionScores = new double[entries];
+            in.asDoubleBuffer().get(emissionScores);
+            in.position(in.position() + 8 * entries);
+
+            HMMModel model = new HMMModel(tags, words, start, transitions, emissionOffsets, emissionTags, emissionScores, unseenPenalty);
+            if (version >= 2) {
+                int nodes = in.getInt();
+                in.getInt();
+                double floor = in.getDouble();
+                if (nodes > 0) {
+                    int[] parents = getInts(in, nodes);
+                    int[] charInts = getInts(in, nodes);
+                    char[] chars = new char[nodes];
+                    for (int node = 0; node < nodes; node++) chars[node] = (char) charInts[node];
+                    double[] nodeScores = new double[nodes * numTags];
+                    in.asDoubleBuffer().get(nodeScores);
+                    in.position(in.position() + 8 * nodeScores.length);
+                    double[] shapeScores = new double[UnknownWordModel.SHAPES * numTags];
+                    in.asDoubleBuffer().get(shapeScores);
+                    model.setUnknownWordModel(new UnknownWordModel(numTags, parents, chars, nodeScores, shapeScores, floor));
+                }
+            }
+            model.setMetrics(metrics);
+            metrics.modelLoaded(System.nanoTime() - startTime);
+            return model;
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static byte[][] utf8(WordIndex vocabulary) {
+        byte[][] bytes = new byte[vocabulary.size()][];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = vocabulary.get(i).getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    private static long stringsSize(byte[][] strings) {
+        long bytes = 0;
+        for (byte[] s : strings) bytes += s.length;
+        return align(4L * (strings.length + 1)) + align(bytes);
+    }
+
+    private static void putInts(ByteBuffer out, int[] values) {
+        out.asIntBuffer().put(values);
+        out.position(out.position() + (int) align(4L * values.length));
+    }
+
+    private static int[] getInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + (int) align(4L * count));
+        return values;
+    }
+
+    private static void putStrings(ByteBuffer out, byte[][] strings) {
+        int[] offsets = new int[strings.length + 1];
+        for (int i = 0; i < strings.length; i++) offsets[i + 1] = offsets[i] + strings[i].length;
+        putInts(out, offsets);
+        int start = out.position();
+        for (byte[] s : strings) out.put(s);
+        out.position(start + (int) align(offsets[strings.length]));
+    }
+
+    private static Vocabulary getStrings(ByteBuffer in, int count) {
+        int[] offsets = getInts(in, count + 1);
+        byte[] bytes = new byte[offsets[count]];
+        in.get(bytes);
+        in.position(in.position() + (int) (align(bytes.length) - bytes.length));
+
+        Vocabulary vocabulary = new Vocabulary();
+        for (int i = 0; i < count; i++) {
+            vocabulary.add(new String(bytes, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8));
+        }
+        return vocabulary;
+    }
+
+    /**
+     * Load time benchmark: retraining Brown from text against mapping the saved model.
+     * Also checks that the loaded model, unknown word model included, tags the test set the same.
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String modelFile = "brown.model";
+        long startTime = System.nanoTime();
+        HMMCounts counts = new StreamingTrainer().count("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+        HMMModel trained = counts.toModel(-100);
+        trained.setUnknownWordModel(UnknownWordModel.train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt", counts, -100));
+        double trainMillis = (System.nanoTime() - startTime) / 1e6;
+        write(trained, modelFile);
+
+        // first load runs cold like a fresh process would, later ones show the warmed up cost
+        double[] loadMillis = new double[5];
+        HMMModel loaded = null;
+        for (int pass = 0; pass < loadMillis.length; pass++) {
+            startTime = System.nanoTime();
+            loaded = read(modelFile);
+            loadMillis[pass] = (System.nanoTime() - startTime) / 1e6;
+        }
+        System.out.println("Retrain: " + Math.round(trainMillis) + " ms");
+        System.out.println("Load mapped model: " + Math.round(loadMillis[0]) + " ms cold, "
+                + Math.round(loadMillis[loadMillis.length - 1]) + " ms warm");
+        Evaluation before = new Evaluator(trained).evaluate("PS5/brown-test-sentences.txt", "PS5/brown-test-tags.txt");
+        Evaluation after = new Evaluator(loaded).evaluate("PS5/brown-test-sentences.txt", "PS5/brown-test-tags.txt");
+        System.out.printf("Accuracy trained %.2f%%, loaded %.2f%% (unseen %.2f%%, %.2f%%)%n", 100 * before.accuracy(),
+                100 * after.accuracy(), 100 * before.unseenAccuracy(), 100 * after.unseenAccuracy());
+    }
+}
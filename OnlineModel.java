@@ -0,0 +1,197 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Model that can learn from new tagged sentences without retraining on the whole corpus.
+ * It keeps the raw counts behind the current model; update() counts only the new sentences,
+ * merges them in and normalizes the merged counts into a new model. Normalizing is a few
+ * milliseconds on Brown, next to 200 ms for recounting the corpus; it is not done row by row,
+ * because new counts for a tag change every emission log-prob of that tag.
+ *
+ * Readers always see a complete HMMModel whose tables no longer change: model() returns the
+ * current snapshot and update() swaps in a new one when it is finished, so a sentence being
+ * tagged during an update is tagged entirely against the old model. Updates are serialized.
+ * Each snapshot carries over the metrics of the one before it. The constructor does not train an
+ * unknown word model; once one is attached to model(), every update retrains it from the merged
+ * counts with UnknownWordModel.train(counts, floor), so it always matches the snapshot's tags.
+ */
+public class OnlineModel {
+
+    private final HMMCounts counts;
+    private final double unseenPenalty;
+    private volatile HMMModel model; // current snapshot, replaced whole by update
+
+    /**
+     * @param counts counts to start from; owned by this model from now on
+     * @param unseenPenalty score for a word that was never observed with a tag
+     */
+    public OnlineModel(HMMCounts counts, double unseenPenalty) {
+        this.counts = counts;
+        this.unseenPenalty = unseenPenalty;
+        this.model = counts.toModel(unseenPenalty);
+    }
+
+    /**
+     * Trains on a pair of files, keeping the counts for later updates
+     * @param sentencesFile
+     * @param tagsFile
+     * @param unseenPenalty
+     * @return online model
+     * @throws IOException
+     */
+    public static OnlineModel train(String sentencesFile, String tagsFile, double unseenPenalty) throws IOException {
+        return new OnlineModel(new StreamingTrainer().count(sentencesFile, tagsFile), unseenPenalty);
+    }
+
+    /**
+     * @return current snapshot; use the same snapshot for a whole sentence
+     */
+    public HMMModel model() {
+        return model;
+    }
+
+    /**
+     * Folds new tagged sentences into the model
+     * @param sentences one space separated sentence per entry
+     * @param sentenceTags matching tag lines
+     * @return number of pairs skipped because their word and tag counts differ
+     */
+    public synchronized int update(List<String> sentences, List<String> sentenceTags) {
+        HMMCounts delta = new HMMCounts();
+        Tokenizer words = new Tokenizer();
+        Tokenizer tags = new Tokenizer();
+        int skipped = 0;
+        for (int i = 0; i < Math.min(sentences.size(), sentenceTags.size()); i++) {
+            String warning = StreamingTrainer.countPair(delta, words, tags, sentences.get(i), sentenceTags.get(i), i + 1);
+            if (warning != null) {
+                System.out.println(warning);
+                skipped++;
+            }
+        }
+        if (sentences.size() != sentenceTags.size()) {
+            System.out.println("Warning: " + sentences.size() + " sentences but " + sentenceTags.size()
+                    + " tag lines, extra lines ignored.");
+        }
+        apply(delta);
+        return skipped;
+    }
+
+    /**
+     * Folds a pair of files of new tagged sentences into the model
+     * @param sentencesFile
+     * @param tagsFile
+     * @return number of line pairs skipped because their word and tag counts differ
+     * @throws IOException
+     */
+    public synchronized int update(String sentencesFile, String tagsFile) throws IOException {
+        StreamingTrainer trainer = new StreamingTrainer();
+        apply(trainer.count(sentencesFile, tagsFile));
+        return trainer.mismatchedLines();
+    }
+
+    /**
+     * Merges new counts and publishes the recompiled snapshot
+     * @param delta
+     */
+    private void apply(HMMCounts delta) {
+        if (delta.tokens() == 0) return;
+        counts.merge(delta);
+        HMMModel previous = model;
+        HMMModel next = counts.toModel(unseenPenalty);
+        next.setMetrics(previous.metrics());
+        // the old unknown word model is stale, and sized for the old tag count if a tag was added
+        if (previous.unknownWordModel() != null) next.setUnknownWordModel(UnknownWordModel.train(counts, unseenPenalty));
+        model = next;
+    }
+
+    /**
+     * @return tokens counted so far, over the initial training and every update
+     */
+    public synchronized long tokens() {
+        return counts.tokens();
+    }
+
+    private static List<String> readLines(String file) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) lines.add(line);
+        reader.close();
+        return lines;
+    }
+
+    /**
+     * Trains on the first 90% of the Brown training set, adds the rest in ten updates,
+     * checks the result against a model retrained from scratch and compares the timings
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> sentences = readLines("PS5/brown-train-sentences.txt");
+        List<String> tags = readLines("PS5/brown-train-tags.txt");
+        int base = sentences.size() * 9 / 10;
+        int step = (sentences.size() - base + 9) / 10;
+
+        HMMCounts initial = new HMMCounts();
+        Tokenizer words = new Tokenizer(), tagTokens = new Tokenizer();
+        for (int i = 0; i < base; i++) StreamingTrainer.countPair(initial, words, tagTokens, sentences.get(i), tags.get(i), i + 1);
+        OnlineModel online = new OnlineModel(initial, -100);
+        online.model().setUnknownWordModel(UnknownWordModel.train(initial, -100));
+
+        // tag with every snapshot on long-lived pool threads, which must not keep the old ones alive
+        ForkJoinPool workers = new ForkJoinPool(2);
+        ArrayList<WeakReference<HMMModel>> snapshots = new ArrayList<>();
+        String[] probe = sentences.get(0).split(" ");
+        long updateNanos = 0;
+        for (int from = base; from < sentences.size(); from += step) {
+            int to = Math.min(from + step, sentences.size());
+            long startTime = System.nanoTime();
+            online.update(sentences.subList(from, to), tags.subList(from, to));
+            updateNanos += System.nanoTime() - startTime;
+            HMMModel snapshot = online.model();
+            snapshots.add(new WeakReference<>(snapshot));
+            workers.submit(() -> snapshot.decode(probe)).join();
+        }
+
+        long startTime = System.nanoTime();
+        HMMModel retrained = new StreamingTrainer().train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt", -100);
+        long retrainNanos = System.nanoTime() - startTime;
+
+        HMMModel updated = online.model();
+        boolean same = Arrays.equals(updated.transitionTable(), retrained.transitionTable())
+                && Arrays.equals(updated.emissionOffsetTable(), retrained.emissionOffsetTable())
+                && Arrays.equals(updated.emissionTagTable(), retrained.emissionTagTable())
+                && Arrays.equals(updated.emissionScoreTable(), retrained.emissionScoreTable());
+        System.out.println("Updated model " + (same ? "matches" : "DIFFERS FROM") + " the retrained model");
+        System.out.printf("10 updates of %d sentences: %.1fms each, full retrain: %.1fms%n",
+                step, updateNanos / 10 / 1e6, retrainNanos / 1e6);
+
+        workers.submit(() -> updated.decode(probe)).join();
+        updated.decode(probe);
+        System.gc();
+        int reachable = 0;
+        for (int i = 0; i < snapshots.size() - 1; i++) if (snapshots.get(i).get() != null) reachable++;
+        System.out.println(reachable + " of " + (snapshots.size() - 1) + " old snapshots still reachable after tagging on pool threads");
+        workers.shutdown();
+
+        // an update that adds a tag must leave an unknown word model with a column for it
+        UnknownWordModel stale = updated.unknownWordModel();
+        online.update(List.of("the zyzzyvas"), List.of("DET NEWTAG"));
+        HMMModel grown = online.model();
+        String[] unseen = {"the", "quorbling", "zyzzyvas"};
+        int[] path = grown.decode(unseen);
+        grown.latticeDecoder().nBest(unseen, unseen.length, 2, new int[2][unseen.length], new double[2]);
+        boolean rejected = false;
+        try {
+            grown.setUnknownWordModel(stale);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        System.out.println("New tag: " + grown.numTags() + " tags, unknown word model has " + grown.unknownWordModel().numTags()
+                + ", unseen word tagged " + grown.tagName(path[1]) + ", stale model " + (rejected ? "rejected" : "ACCEPTED"));
+    }
+}
@@ -13,10 +13,11 @@ import java.util.Scanner;
 
 public class POS {
 
-    private static ArrayList<String[]> training;
-    private static ArrayList<String[]> tag;
-    private static HashMap<String, HashMap<String, Double>> transitionMap;
-    private static HashMap<String, HashMap<String, Double>> observationMap;
+    private ArrayList<String[]> training;
+    private ArrayList<String[]> tag;
+    private HashMap<String, HashMap<String, Double>> transitionMap;
+    private HashMap<String, HashMap<String, Double>> observationMap;
+    private HMMModel model; // compiled form of the two maps that viterbi runs on
 
     /**
      * Reading training data
@@ -53,6 +54,46 @@ public class POS {
         }
     }
 
+    /**
+     * Streaming training straight from the files, one sentence in memory at a time.
+     * Builds the compiled model only; the transition and observation maps are left unset.
+     * Unseen words are scored by their suffix and shape rather than the flat -100.
+     *
+     * @param trainingTextFilePath
+     * @param trainingTagsFilePath
+     * @throws IOException
+     */
+    public void train(String trainingTextFilePath, String trainingTagsFilePath) throws IOException {
+        HMMCounts counts = new StreamingTrainer().count(trainingTextFilePath, trainingTagsFilePath);
+        model = counts.toModel(-100);
+        model.setUnknownWordModel(UnknownWordModel.train(trainingTextFilePath, trainingTagsFilePath, counts, -100));
+    }
+
+    /**
+     * Saves the trained model to a binary model file
+     * @param modelFilePath
+     * @throws IOException
+     */
+    public void saveModel(String modelFilePath) throws IOException {
+        ModelIO.write(model, modelFilePath);
+    }
+
+    /**
+     * Loads a model saved by saveModel instead of training
+     * @param modelFilePath
+     * @throws IOException
+     */
+    public void loadModel(String modelFilePath) throws IOException {
+        model = ModelIO.read(modelFilePath);
+    }
+
+    /**
+     * @return number of training sentences read by loadTrainingData
+     */
+    int sentenceCount() {
+        return training.size();
+    }
+
     /**
      * Training to create the transition and observation maps
      */
@@ -127,89 +168,92 @@ public class POS {
                         hash.put(state, Math.log(hash.get(state) / total));
                     }
                 }
+                model = HMMModel.compile(transitionMap, observationMap, "#", -100);
             }
         } catch (Exception e) {
             System.out.println("Error: Training data is not valid.");
         }
     }
 
+    /**
+     * The model's tables never change after training, so it is safe to share between threads.
+     * It is not immutable: setMetrics and setUnknownWordModel change it for every thread using it.
+     * @return the trained model
+     */
+    public HMMModel getModel() {
+        return model;
+    }
+
     /**
      * Viterbi algorithm, given a string input determines the most likely path of states
      * @param input
      * @return
      */
     public ArrayList<String> viterbi(String input) {
-        // Initialize BackTrace list to contain a map with current and previous sentence
-        ArrayList<HashMap<String, String>> backTrace = new ArrayList<>();
-
-        // Initialize the currentState and current score
-        HashMap<String, Double> currScores = new HashMap<String, Double>();
-
-        // Initialize the next Scores and next state
-        HashMap<String, Double> nextScores;
-
-        // Initial start and value as 0.0
-        currScores.put("#", 0.0);
-
-        // Convert input to list
-        String[] words = input.toLowerCase().split(" ");
-
-        // Loop through the list
-        for (int i = 0; i < words.length; i++) {
-            nextScores = new HashMap<>();
-
-            HashMap<String, String> backTraceMap = new HashMap<>();
-
-            for (String currState : currScores.keySet()) {
-                if (transitionMap.containsKey(currState)) {
-                    for (String nextState : transitionMap.get(currState).keySet()) {
-
-                        double currScore = currScores.get(currState);
-                        double transitionScore = transitionMap.get(currState).get(nextState);
-                        double observationScore;
-
-                        if (observationMap.get(nextState).containsKey(words[i])) {
-                            observationScore = observationMap.get(nextState).get(words[i]);
-                        } else observationScore = -100;
+        // Find the words, they are looked up in lower case without copying them out
+        Tokenizer words = Tokenizer.forThread();
+        int length = words.tokenize(input);
+
+        // Decode over the compiled model
+        int[] path = new int[length];
+        model.decoder().decode(words, path);
+
+        // first word is the "#" start marker, skip its state
+        ArrayList<String> predictedStates = new ArrayList<String>(length);
+        for (int i = 1; i < length; i++) {
+            predictedStates.add(model.tagName(path[i]));
+        }
 
-                        double nextScore = currScore + transitionScore + observationScore;
+        // return that list
+        return predictedStates;
+    }
 
-                        if (!nextScores.containsKey(nextState) || nextScore > nextScores.get(nextState)) {
-                            nextScores.put(nextState, nextScore);
-                            backTraceMap.put(nextState, currState);
-                            backTrace.add(i, backTraceMap);
-                        }
-                    }
-                }
-            }
-            currScores = nextScores;
-            // find max value at the end and backtrack from that max value
-        }
-        // Do backtrace
-        double maxScore = Double.NEGATIVE_INFINITY;
-        String maxState = "";
-
-        // loop through curr scores
-        for (String currState : currScores.keySet()) {
-
-            // find highest score
-            if (currScores.get(currState) > maxScore) {
-                maxScore = currScores.get(currState);
-                // get highest state
-                maxState = currState;
-            }
+    /**
+     * The k most likely paths of states, best first
+     * @param input
+     * @param k number of paths wanted
+     * @return up to k paths
+     */
+    public ArrayList<ArrayList<String>> nBest(String input, int k) {
+        Tokenizer words = Tokenizer.forThread();
+        int length = words.tokenize(input);
+        int[][] paths = new int[k][length];
+        int found = model.latticeDecoder().nBest(words, k, paths, new double[k]);
+
+        // first word is the "#" start marker, skip its state
+        ArrayList<ArrayList<String>> predictions = new ArrayList<ArrayList<String>>(found);
+        for (int p = 0; p < found; p++) {
+            ArrayList<String> predictedStates = new ArrayList<String>(length);
+            for (int i = 1; i < length; i++) predictedStates.add(model.tagName(paths[p][i]));
+            predictions.add(predictedStates);
         }
+        return predictions;
+    }
 
-        // loop through back trace array list backwards
-        ArrayList<String> predictedStates = new ArrayList<String>();
-        for (int i = words.length - 1; i >= 1; i--) {
-            predictedStates.add(0, maxState);
-            maxState = backTrace.get(i).get(maxState);
+    /**
+     * Probability of each state at each word, given the whole input
+     * @param input
+     * @param minPosterior states less likely than this are left out
+     * @return state -> probability for every word
+     */
+    public ArrayList<HashMap<String, Double>> posteriors(String input, double minPosterior) {
+        Tokenizer words = Tokenizer.forThread();
+        int length = words.tokenize(input);
+        int numTags = model.numTags();
+        double[] posteriors = new double[length * numTags];
+        model.latticeDecoder().posteriors(words, posteriors);
+
+        // first word is the "#" start marker, skip its states
+        ArrayList<HashMap<String, Double>> predictions = new ArrayList<HashMap<String, Double>>(length);
+        for (int i = 1; i < length; i++) {
+            HashMap<String, Double> states = new HashMap<String, Double>();
+            for (int t = 0; t < numTags; t++) {
+                double p = posteriors[i * numTags + t];
+                if (p > 0 && p >= minPosterior) states.put(model.tagName(t), p);
+            }
+            predictions.add(states);
         }
-
-
-        // return that list
-        return predictedStates;
+        return predictions;
     }
 
     /**
@@ -254,16 +298,17 @@ public class POS {
 
         double correct = 0;
         int total = 0;
+        Tokenizer tags = new Tokenizer();
 
         try {
             while (line != null && tagLine != null) {
-                line = "# " + line.toLowerCase();
+                line = "# " + line;
                 ArrayList<String> predictionArray = viterbi(line);
-                String[] tags = tagLine.split(" ");
+                tags.tokenize(tagLine);
 
                 for (int i = 0; i < predictionArray.size(); i++) {
 
-                    if (tags[i].equals(predictionArray.get(i))) {
+                    if (i < tags.count() && tags.matches(i, predictionArray.get(i))) {
                         correct += 1;
                     }
                     total += 1;
@@ -282,6 +327,32 @@ public class POS {
         btesttags.close();
     }
 
+    /**
+     * Tagging speed over a whole file, in tokens per second
+     * @param testSentencesFile
+     * @throws IOException
+     */
+    public void throughputTest(String testSentencesFile) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader btest = new BufferedReader(new FileReader(testSentencesFile));
+        String line;
+        long tokens = 0;
+        while ((line = btest.readLine()) != null) {
+            lines.add("# " + line);
+            tokens += Tokenizer.forThread().tokenize(line);
+        }
+        btest.close();
+
+        // a few passes to let the JIT warm up, report the last one
+        double tokensPerSecond = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            long startTime = System.nanoTime();
+            for (String sentence : lines) viterbi(sentence);
+            tokensPerSecond = tokens / ((System.nanoTime() - startTime) / 1e9);
+        }
+        System.out.println("Throughput: " + Math.round(tokensPerSecond) + " tokens/sec");
+    }
+
     /**
      * Hard coded graph test
      */
@@ -308,6 +379,7 @@ public class POS {
         observationMap.get("NP").put("chase", 0.0);
         observationMap.get("V").put("watch", 0.0);
         observationMap.get("N").put("dog", 0.0);
+        model = HMMModel.compile(transitionMap, observationMap, "#", -100);
 
         System.out.println("Sentence: " + sentence);
         System.out.println("Transition Map: " + transitionMap);
@@ -333,21 +405,19 @@ public class POS {
         System.out.println(" ");
 
         POS simpleTest = new POS();
-        simpleTest.loadTrainingData(SimpleTrainingSentences, SimpleTrainingTags);
-        simpleTest.OTMaps();
+        simpleTest.train(SimpleTrainingSentences, SimpleTrainingTags);
         System.out.println(" ");
         System.out.println("File test Simple:");
         simpleTest.fileTest("PS5/simple-test-sentences.txt", "PS5/simple-test-tags.txt");
         System.out.println(" ");
 
         POS autoTest = new POS();
-        autoTest.loadTrainingData(BrownTrainingSentences, BrownTrainingTags);
-        autoTest.OTMaps();
+        autoTest.train(BrownTrainingSentences, BrownTrainingTags);
         System.out.println("File test Brown:");
         autoTest.fileTest("PS5/brown-test-sentences.txt", "PS5/brown-test-tags.txt"  );
+        autoTest.throughputTest("PS5/brown-test-sentences.txt");
         System.out.println(" ");
         System.out.println("Console test:");
         autoTest.consoleTest();
     }
 }
-// handle the error where the tag file is different from teh text file
\ No newline at end of file
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Trains on all cores: the corpus is split into chunks of line pairs, each chunk is read and
+ * counted on its own worker into a private HMMCounts, and the partial counts are merged in corpus
+ * order before normalizing. Splitting only scans both files for line breaks; the workers read
+ * their byte ranges through CorpusReader. Because counts are integers and merging keeps first-appearance order, the model is
+ * identical to a single-threaded StreamingTrainer run. Only a bounded number of chunks are in
+ * flight at once, so memory stays independent of corpus size.
+ */
+public class ParallelTrainer {
+
+    private final ForkJoinPool pool;
+    private final int chunkLines;     // line pairs per chunk
+    private final int maxInFlight;    // chunks read ahead of the merge
+    private int mismatchedLines;      // line pairs skipped in the last run
+    private TaggerMetrics metrics = TaggerMetrics.NONE; // told how long each count took
+
+    /**
+     * Trainer on the common fork-join pool with 4096 line pairs per chunk
+     */
+    public ParallelTrainer() {
+        this(ForkJoinPool.commonPool(), 4096);
+    }
+
+    /**
+     * @param pool pool the chunks are counted on
+     * @param chunkLines line pairs per chunk
+     */
+    public ParallelTrainer(ForkJoinPool pool, int chunkLines) {
+        this.pool = pool;
+        this.chunkLines = chunkLines;
+        this.maxInFlight = pool.getParallelism() * 2;
+    }
+
+    /**
+     * Counts of one chunk plus the warnings raised while counting it
+     */
+    private static class Chunk {
+        final HMMCounts counts = new HMMCounts();
+        final ArrayList<String> warnings = new ArrayList<>();
+    }
+
+    /**
+     * Counts a chunk of line pairs
+     * @param sentences sentence file
+     * @param sentenceStart offset of the chunk's first sentence line
+     * @param sentenceEnd end of its last sentence line
+     * @param tags tag file
+     * @param tagStart offset of the chunk's first tag line
+     * @param tagEnd end of its last tag line
+     * @param firstLine line number of the first pair
+     * @return counts of the chunk
+     * @throws IOException
+     */
+    private static Chunk countChunk(FileChannel sentences, long sentenceStart, long sentenceEnd,
+                                    FileChannel tags, long tagStart, long tagEnd, long firstLine) throws IOException {
+        Chunk chunk = new Chunk();
+        Tokenizer words = new Tokenizer();
+        Tokenizer tagTokens = new Tokenizer();
+        CorpusReader sentenceLines = new CorpusReader(sentences, sentenceStart, sentenceEnd);
+        CorpusReader tagLines = new CorpusReader(tags, tagStart, tagEnd);
+        for (long line = firstLine; sentenceLines.next(words) >= 0 && tagLines.next(tagTokens) >= 0; line++) {
+            String warning = StreamingTrainer.countTokenized(chunk.counts, words, tagTokens, line);
+            if (warning != null) chunk.warnings.add(warning);
+        }
+        return chunk;
+    }
+
+    /**
+     * Merges a finished chunk into the running total
+     * @param total
+     * @param task
+     */
+    private void mergeChunk(HMMCounts total, ForkJoinTask<Chunk> task) {
+        Chunk chunk = task.join();
+        total.merge(chunk.counts);
+        for (String warning : chunk.warnings) System.out.println(warning);
+        mismatchedLines += chunk.warnings.size();
+    }
+
+    /**
+     * Counts a pair of training files in parallel
+     * @param sentencesFile one space separated sentence per line
+     * @param tagsFile one space separated tag line per sentence line
+     * @return merged counts of every well formed line pair
+     * @throws IOException
+     */
+    public HMMCounts count(String sentencesFile, String tagsFile) throws IOException {
+        HMMCounts total = new HMMCounts();
+        ArrayDeque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>();
+        mismatchedLines = 0;
+        long startTime = System.nanoTime();
+
+        FileChannel sentences = CorpusReader.open(sentencesFile);
+        FileChannel tags = CorpusReader.open(tagsFile);
+        try {
+            CorpusReader sentenceLines = new CorpusReader(sentences, 0, -1);
+            CorpusReader tagLines = new CorpusReader(tags, 0, -1);
+            long lineNumber = 1;
+            while (true) {
+                // find the next chunk on this thread, read and count it on the pool
+                long sentenceStart = sentenceLines.position(), tagStart = tagLines.position();
+                long size = Math.min(sentenceLines.skipLines(chunkLines), tagLines.skipLines(chunkLines));
+                if (size == 0) break;
+                long sentenceEnd = sentenceLines.position(), tagEnd = tagLines.position();
+                long firstLine = lineNumber;
+                lineNumber += size;
+                inFlight.add(pool.submit(() -> countChunk(sentences, sentenceStart, sentenceEnd, tags, tagStart, tagEnd, firstLine)));
+                if (size < chunkLines) break;
+
+                // merge in corpus order, waiting on the oldest chunk once enough are queued
+                while (inFlight.size() >= maxInFlight || (!inFlight.isEmpty() && inFlight.peek().isDone())) {
+                    mergeChunk(total, inFlight.poll());
+                }
+            }
+            while (!inFlight.isEmpty()) mergeChunk(total, inFlight.poll());
+
+            if (sentenceLines.lines() != tagLines.lines() || sentenceLines.skipLines(1) + tagLines.skipLines(1) > 0) {
+                String longer = sentenceLines.lines() > tagLines.lines() ? sentencesFile : tagsFile;
+                System.out.println("Warning: " + longer + " has extra lines from line " + lineNumber + ", ignored.");
+            }
+        } finally {
+            sentences.close();
+            tags.close();
+        }
+        metrics.trainingFinished(total.tokens(), System.nanoTime() - startTime);
+        return total;
+    }
+
+    /**
+     * Counts a pair of training files in parallel and normalizes them into a model
+     * @param sentencesFile
+     * @param tagsFile
+     * @param unseenPenalty score for a word that was never observed with a tag
+     * @return compiled model
+     * @throws IOException
+     */
+    public HMMModel train(String sentencesFile, String tagsFile, double unseenPenalty) throws IOException {
+        return count(sentencesFile, tagsFile).toModel(unseenPenalty);
+    }
+
+    /**
+     * @param metrics sink told the token count and duration of every count, TaggerMetrics.NONE for none
+     */
+    public void setMetrics(TaggerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return number of line pairs skipped by the last count because their lengths differ
+     */
+    public int mismatchedLines() {
+        return mismatchedLines;
+    }
+}
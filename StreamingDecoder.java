@@ -0,0 +1,378 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Viterbi over an unbounded stream of tokens, with no sentence boundaries needed. Tokens are
+ * pushed one at a time. A token's tag is final once every surviving path agrees on it: all
+ * states alive at the newest token trace back to the same state there. If they still disagree
+ * maxLag tokens later, the oldest pending token takes its tag on the current best path. Paths
+ * through any other state are then dropped, so the tags emitted always form one valid path.
+ *
+ * Back pointers live in a ring of maxLag + 1 columns, so memory and the work per token stay
+ * bounded however long the stream runs. Scores are shifted so each column's best is 0, which
+ * keeps them from losing precision over millions of tokens.
+ *
+ * Training sentences all begin at the start tag, so nothing in the model follows a sentence end.
+ * After the boundary tag ("." by default) the stream may therefore go on as if from the start
+ * tag, as well as by the boundary tag's own transitions. If no state at all can follow a token,
+ * the pending tokens are closed as a sentence and a new one starts from the start tag.
+ * Not thread-safe: use one decoder per stream.
+ */
+public class StreamingDecoder {
+
+    private final HMMModel model;
+    private final int numTags;
+    private final int maxLag;
+    private final int boundary;       // tag after which a new sentence may start, -1 for none
+    private final int[] successorOffsets;   // shared with the model, read only
+    private final int[] successorTags;      // shared with the model, read only
+    private final double[] successorScores; // shared with the model, read only
+
+    private final int[][] ring;       // [token % (maxLag + 1)][tag] -> best previous tag
+    private double[] scores;          // newest column, best score 0
+    private double[] nextScores;
+    private int[] live;               // states alive in the newest column
+    private int[] nextLive;
+    private int liveCount;
+    private final int[] walk;         // scratch: states of the surviving paths while walking back
+    private final int[] nextWalk;
+    private final int[] seen;         // scratch: stamp of the last walk step that marked each tag
+    private int stamp;
+    private final int[] ancestors;    // scratch: ancestor of each live state at the forced token
+    private final double[] emissionScratch;
+
+    private long pushed;              // tokens pushed since the stream started
+    private long emitted;             // tokens whose tags have been emitted
+    private long forced;              // tokens emitted because they reached maxLag
+
+    /**
+     * Decoder that starts a new sentence after "."
+     * @param model
+     * @param maxLag tokens a tag may stay pending before it is forced, at least 1
+     */
+    public StreamingDecoder(HMMModel model, int maxLag) {
+        this(model, maxLag, ".");
+    }
+
+    /**
+     * @param model
+     * @param maxLag tokens a tag may stay pending before it is forced, at least 1
+     * @param boundaryTag tag that ends a sentence, null or a tag not in the model for none
+     */
+    public StreamingDecoder(HMMModel model, int maxLag, String boundaryTag) {
+        if (maxLag < 1) throw new IllegalArgumentException("maxLag must be at least 1: " + maxLag);
+        this.model = model;
+        this.numTags = model.numTags();
+        this.maxLag = maxLag;
+        this.boundary = boundaryTag == null ? -1 : model.tagId(boundaryTag);
+        this.successorOffsets = model.successorOffsetTable();
+        this.successorTags = model.successorTagTable();
+        this.successorScores = model.successorScoreTable();
+        this.ring = new int[maxLag + 1][numTags];
+        this.scores = new double[numTags];
+        this.nextScores = new double[numTags];
+        this.live = new int[numTags];
+        this.nextLive = new int[numTags];
+        this.walk = new int[numTags];
+        this.nextWalk = new int[numTags];
+        this.seen = new int[numTags];
+        this.ancestors = new int[numTags];
+        this.emissionScratch = new double[numTags];
+        restart();
+    }
+
+    private void restart() {
+        Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+        scores[model.startTag()] = 0.0;
+        live[0] = model.startTag();
+        liveCount = 1;
+    }
+
+    /**
+     * Adds a token to the stream
+     * @param word token, already normalized the way the model was trained
+     * @param out receives the tag ids that became final, in stream order; must hold maxLag + 1 ids
+     * @return number of tags written, for the oldest pending tokens
+     */
+    public int push(String word, int[] out) {
+        int wordId = model.wordId(word);
+        UnknownWordModel unknownWords = model.unknownWordModel();
+        double[] emission = emissionScratch;
+        if (wordId < 0 && unknownWords != null) {
+            emission = unknownWords.emissions(word, 0, word.length());
+        } else {
+            model.emissions(wordId, emissionScratch);
+        }
+        return push(emission, out);
+    }
+
+    /**
+     * Adds a token of a tokenized line to the stream, looked up in lower case
+     * @param tokens tokenizer holding the line
+     * @param token index of the token in the line
+     * @param out receives the tag ids that became final, in stream order; must hold maxLag + 1 ids
+     * @return number of tags written, for the oldest pending tokens
+     */
+    public int push(Tokenizer tokens, int token, int[] out) {
+        int wordId = model.wordId(tokens, token);
+        UnknownWordModel unknownWords = model.unknownWordModel();
+        double[] emission = emissionScratch;
+        if (wordId < 0 && unknownWords != null) {
+            emission = unknownWords.emissions(tokens.text(), tokens.start(token), tokens.end(token));
+        } else {
+            model.emissions(wordId, emissionScratch);
+        }
+        return push(emission, out);
+    }
+
+    /**
+     * Ends the stream: emits every pending tag on the best path and starts over
+     * @param out receives the tag ids, in stream order; must hold maxLag + 1 ids
+     * @return number of tags written
+     */
+    public int flush(int[] out) {
+        int written = finish(out, 0);
+        restart();
+        return written;
+    }
+
+    /**
+     * @return tokens pushed but not yet tagged
+     */
+    public int pending() {
+        return (int) (pushed - emitted);
+    }
+
+    /**
+     * @return tokens pushed since the stream started
+     */
+    public long pushed() {
+        return pushed;
+    }
+
+    /**
+     * @return tokens whose tags were forced by maxLag rather than agreed on by every path
+     */
+    public long forced() {
+        return forced;
+    }
+
+    private int push(double[] emission, int[] out) {
+        int written = 0;
+        int[] back = ring[(int) (pushed % ring.length)];
+        int nextCount = expand(emission, back);
+        if (nextCount == 0) {
+            // nothing can follow the pending tokens: close them as a sentence and start a new one
+            written = finish(out, 0);
+            restart();
+            back = ring[(int) (pushed % ring.length)];
+            nextCount = expand(emission, back);
+            if (nextCount == 0) {
+                // not even from the start tag: the token gets no tag
+                pushed++;
+                emitted++;
+                out[written++] = -1;
+                restart();
+                return written;
+            }
+        }
+        double[] swapScores = scores;
+        scores = nextScores;
+        nextScores = swapScores;
+        int[] swapLive = live;
+        live = nextLive;
+        nextLive = swapLive;
+        liveCount = nextCount;
+        pushed++;
+
+        written += emitConverged(out, written);
+        if (pushed - emitted > maxLag) written += force(out, written);
+        return written;
+    }
+
+    /**
+     * Scores the next column from the live states, shifted so its best score is 0
+     * @return number of states alive in it
+     */
+    private int expand(double[] emission, int[] back) {
+        Arrays.fill(nextScores, Double.NEGATIVE_INFINITY);
+        for (int l = 0; l < liveCount; l++) {
+            int prev = live[l];
+            expandFrom(prev, prev, emission, back);
+            // a sentence end may be followed by the start of the next sentence
+            if (prev == boundary) expandFrom(prev, model.startTag(), emission, back);
+        }
+        double best = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for (int t = 0; t < numTags; t++) {
+            if (nextScores[t] == Double.NEGATIVE_INFINITY) continue;
+            nextLive[count++] = t;
+            best = Math.max(best, nextScores[t]);
+        }
+        for (int l = 0; l < count; l++) nextScores[nextLive[l]] -= best;
+        return count;
+    }
+
+    /**
+     * Scores the successors of one state into the next column
+     * @param prev live state
+     * @param from tag whose successor list is followed, prev or the start tag
+     */
+    private void expandFrom(int prev, int from, double[] emission, int[] back) {
+        double currScore = scores[prev];
+        for (int k = successorOffsets[from]; k < successorOffsets[from + 1]; k++) {
+            int next = successorTags[k];
+            double nextScore = currScore + successorScores[k] + emission[next];
+            if (nextScore > nextScores[next]) {
+                nextScores[next] = nextScore;
+                back[next] = prev;
+            }
+        }
+    }
+
+    /**
+     * Walks the surviving paths back from the newest token to the oldest pending one and emits
+     * everything up to the newest token where they all pass through one state
+     * @return number of tags written
+     */
+    private int emitConverged(int[] out, int offset) {
+        System.arraycopy(live, 0, walk, 0, liveCount);
+        int count = liveCount;
+        int[] states = walk, previous = nextWalk;
+        for (long i = pushed - 1; i >= emitted; i--) {
+            if (count == 1) return emitPath(out, offset, i, states[0]);
+            if (i == emitted) return 0;
+            int[] back = ring[(int) (i % ring.length)];
+            stamp++;
+            int previousCount = 0;
+            for (int s = 0; s < count; s++) {
+                int prev = back[states[s]];
+                if (seen[prev] != stamp) {
+                    seen[prev] = stamp;
+                    previous[previousCount++] = prev;
+                }
+            }
+            int[] swap = states;
+            states = previous;
+            previous = swap;
+            count = previousCount;
+        }
+        return 0;
+    }
+
+    /**
+     * Emits the oldest pending token on the current best path and drops every live state whose
+     * path gives that token another tag
+     * @return number of tags written
+     */
+    private int force(int[] out, int offset) {
+        int best = live[0];
+        for (int l = 1; l < liveCount; l++) if (scores[live[l]] > scores[best]) best = live[l];
+        for (int l = 0; l < liveCount; l++) ancestors[l] = live[l];
+        for (long i = pushed - 1; i > emitted; i--) {
+            int[] back = ring[(int) (i % ring.length)];
+            for (int l = 0; l < liveCount; l++) ancestors[l] = back[ancestors[l]];
+        }
+        int tag = -1;
+        for (int l = 0; l < liveCount; l++) if (live[l] == best) tag = ancestors[l];
+        int kept = 0;
+        for (int l = 0; l < liveCount; l++) {
+            if (ancestors[l] == tag) live[kept++] = live[l];
+            else scores[live[l]] = Double.NEGATIVE_INFINITY;
+        }
+        liveCount = kept;
+        out[offset] = tag;
+        emitted++;
+        forced++;
+        return 1;
+    }
+
+    /**
+     * Emits the pending tokens up to the best state of the newest column
+     * @return number of tags written
+     */
+    private int finish(int[] out, int offset) {
+        if (pushed == emitted) return 0;
+        int best = live[0];
+        for (int l = 1; l < liveCount; l++) if (scores[live[l]] > scores[best]) best = live[l];
+        return emitPath(out, offset, pushed - 1, best);
+    }
+
+    /**
+     * Follows back pointers from a state at a token down to the oldest pending token and emits
+     * that stretch of the path
+     * @param last token the path starts from
+     * @param state its state
+     * @return number of tags written
+     */
+    private int emitPath(int[] out, int offset, long last, int state) {
+        int count = (int) (last - emitted + 1);
+        for (long i = last; i >= emitted; i--) {
+            out[offset + (int) (i - emitted)] = state;
+            if (i > emitted) state = ring[(int) (i % ring.length)][state];
+        }
+        emitted = last + 1;
+        return count;
+    }
+
+    /**
+     * Tags the Brown test set as one unbroken token stream at several lags, against sentence by
+     * sentence Viterbi, with the speed and the share of tags that had to be forced
+     */
+    public static void main(String[] args) throws Exception {
+        POS pos = new POS();
+        pos.train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+        HMMModel model = pos.getModel();
+
+        ArrayList<String> words = new ArrayList<>();
+        ArrayList<String> tags = new ArrayList<>();
+        BufferedReader testSentences = new BufferedReader(new FileReader("PS5/brown-test-sentences.txt"));
+        BufferedReader testTags = new BufferedReader(new FileReader("PS5/brown-test-tags.txt"));
+        String line, tagLine;
+        int viterbiCorrect = 0;
+        while ((line = testSentences.readLine()) != null && (tagLine = testTags.readLine()) != null) {
+            String[] sentence = line.toLowerCase().split(" ");
+            String[] sentenceTags = tagLine.split(" ");
+            if (sentence.length != sentenceTags.length) continue;
+            int[] path = model.decode(sentence);
+            for (int i = 0; i < sentence.length; i++) {
+                words.add(sentence[i]);
+                tags.add(sentenceTags[i]);
+                if (model.tagName(path[i]).equals(sentenceTags[i])) viterbiCorrect++;
+            }
+        }
+        testSentences.close();
+        testTags.close();
+        System.out.printf("Sentence by sentence Viterbi: %.2f%% of %d tokens%n", 100.0 * viterbiCorrect / words.size(), words.size());
+
+        for (int maxLag : new int[]{1, 2, 4, 8, 16, 64}) {
+            StreamingDecoder decoder = new StreamingDecoder(model, maxLag);
+            int[] out = new int[maxLag + 1];
+            int[] stream = new int[words.size()];
+            double tokensPerSecond = 0;
+            long lagSum = 0;
+            for (int pass = 0; pass < 5; pass++) {
+                int filled = 0;
+                lagSum = 0;
+                long startTime = System.nanoTime();
+                for (String word : words) {
+                    int written = decoder.push(word, out);
+                    // lag of an emitted token: tokens pushed after it
+                    for (int w = 0; w < written; w++) lagSum += decoder.pending() + written - 1 - w;
+                    System.arraycopy(out, 0, stream, filled, written);
+                    filled += written;
+                }
+                int written = decoder.flush(out);
+                System.arraycopy(out, 0, stream, filled, written);
+                tokensPerSecond = words.size() / ((System.nanoTime() - startTime) / 1e9);
+            }
+            int correct = 0;
+            for (int i = 0; i < words.size(); i++) if (stream[i] >= 0 && model.tagName(stream[i]).equals(tags.get(i))) correct++;
+            System.out.printf("max lag %2d: %.2f%%, %.1f%% forced, mean lag %.2f tokens, %.0f tokens/sec%n", maxLag,
+                    100.0 * correct / words.size(), 100.0 * decoder.forced() / decoder.pushed(),
+                    (double) lagSum / words.size(), tokensPerSecond);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+
+/**
+ * Trains by reading the sentence and tag files in lockstep, one line pair at a time,
+ * so only the current sentence is ever held in memory. Line pairs whose word and tag
+ * counts differ are reported with their line number and skipped. The files are read
+ * through CorpusReader, so no String is made for a line or a token already counted.
+ */
+public class StreamingTrainer {
+
+    private int mismatchedLines; // line pairs skipped in the last run
+    private TaggerMetrics metrics = TaggerMetrics.NONE; // told how long each count took
+    private final Tokenizer words = new Tokenizer();
+    private final Tokenizer tags = new Tokenizer();
+
+    /**
+     * Counts a pair of training files
+     * @param sentencesFile one space separated sentence per line
+     * @param tagsFile one space separated tag line per sentence line
+     * @return counts of every well formed line pair
+     * @throws IOException
+     */
+    public HMMCounts count(String sentencesFile, String tagsFile) throws IOException {
+        HMMCounts counts = new HMMCounts();
+        mismatchedLines = 0;
+        long startTime = System.nanoTime();
+        CorpusReader sentences = new CorpusReader(sentencesFile);
+        CorpusReader tagLines = new CorpusReader(tagsFile);
+        try {
+            int wordCount = sentences.next(words);
+            int tagCount = tagLines.next(tags);
+            long lineNumber = 1;
+            while (wordCount >= 0 && tagCount >= 0) {
+                String warning = countTokenized(counts, words, tags, lineNumber);
+                if (warning != null) {
+                    mismatchedLines++;
+                    System.out.println(warning);
+                }
+                wordCount = sentences.next(words);
+                tagCount = tagLines.next(tags);
+                lineNumber++;
+            }
+            if (wordCount >= 0 || tagCount >= 0) {
+                String longer = wordCount >= 0 ? sentencesFile : tagsFile;
+                System.out.println("Warning: " + longer + " has extra lines from line " + lineNumber + ", ignored.");
+            }
+        } finally {
+            sentences.close();
+            tagLines.close();
+        }
+        metrics.trainingFinished(counts.tokens(), System.nanoTime() - startTime);
+        return counts;
+    }
+
+    /**
+     * Counts one sentence line with its tag line
+     * @param counts
+     * @param words tokenizer for the sentence line
+     * @param tags tokenizer for the tag line
+     * @param line
+     * @param tagLine
+     * @param lineNumber line number used in the warning
+     * @return null if the pair was counted, otherwise a warning saying why it was skipped
+     */
+    static String countPair(HMMCounts counts, Tokenizer words, Tokenizer tags, String line, String tagLine, long lineNumber) {
+        words.tokenize(line);
+        tags.tokenize(tagLine);
+        return countTokenized(counts, words, tags, lineNumber);
+    }
+
+    /**
+     * Counts one sentence with its tags, both already tokenized
+     * @param counts
+     * @param words tokenizer holding the sentence line
+     * @param tags tokenizer holding the tag line
+     * @param lineNumber line number used in the warning
+     * @return null if the pair was counted, otherwise a warning saying why it was skipped
+     */
+    static String countTokenized(HMMCounts counts, Tokenizer words, Tokenizer tags, long lineNumber) {
+        if (words.count() != tags.count()) {
+            return "Warning: line " + lineNumber + " has " + words.count()
+                    + " words but " + tags.count() + " tags, skipped.";
+        }
+        counts.addSentence(words, tags);
+        return null;
+    }
+
+    /**
+     * Counts a pair of training files and normalizes them into a model
+     * @param sentencesFile
+     * @param tagsFile
+     * @param unseenPenalty score for a word that was never observed with a tag
+     * @return compiled model
+     * @throws IOException
+     */
+    public HMMModel train(String sentencesFile, String tagsFile, double unseenPenalty) throws IOException {
+        return count(sentencesFile, tagsFile).toModel(unseenPenalty);
+    }
+
+    /**
+     * @param metrics sink told the token count and duration of every count, TaggerMetrics.NONE for none
+     */
+    public void setMetrics(TaggerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return number of line pairs skipped by the last count because their lengths differ
+     */
+    public int mismatchedLines() {
+        return mismatchedLines;
+    }
+}
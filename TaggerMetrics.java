@@ -0,0 +1,38 @@
+/**
+ * Receives measurements from training, model loading and decoding.
+ * Implementations are called on the tagging threads, so they must be thread-safe and cheap;
+ * TaggerStats keeps counters and histograms and exposes them over JMX.
+ */
+public interface TaggerMetrics {
+
+    /**
+     * Does nothing, the default
+     */
+    TaggerMetrics NONE = new TaggerMetrics() {
+        public void sentenceDecoded(int tokens, int oovTokens, long statesExpanded, long nanos) { }
+        public void modelLoaded(long nanos) { }
+        public void trainingFinished(long tokens, long nanos) { }
+    };
+
+    /**
+     * One sentence went through the decoder
+     * @param tokens sentence length
+     * @param oovTokens tokens that were not in the vocabulary (scored with the unseen penalty)
+     * @param statesExpanded lattice edges scored, summed over the sentence
+     * @param nanos decode time
+     */
+    void sentenceDecoded(int tokens, int oovTokens, long statesExpanded, long nanos);
+
+    /**
+     * A model file was loaded
+     * @param nanos
+     */
+    void modelLoaded(long nanos);
+
+    /**
+     * A training run counted a corpus
+     * @param tokens tokens counted
+     * @param nanos
+     */
+    void trainingFinished(long tokens, long nanos);
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * TaggerMetrics that keeps everything in striped counters and lock-free histograms, cheap enough
+ * to leave on in production: recording a sentence is a handful of uncontended adds.
+ * Decode latency is kept per sentence length bucket, since a 200 token sentence is not
+ * slow in the same way a 5 token one is. register() publishes the numbers over JMX.
+ */
+public class TaggerStats implements TaggerMetrics, TaggerStatsMBean {
+
+    private static final int[] LENGTHS = {5, 20, 60, 200}; // upper bounds of the length buckets, one more for longer
+
+    private final LongAdder sentences = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder oovTokens = new LongAdder();
+    private final LongAdder statesExpanded = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private volatile LatencyHistogram decode = new LatencyHistogram();
+    private volatile LatencyHistogram[] decodeByLength = newHistograms();
+    private volatile long lastModelLoadNanos;
+    private volatile long lastTrainingNanos;
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[LENGTHS.length + 1];
+        for (int b = 0; b < histograms.length; b++) histograms[b] = new LatencyHistogram();
+        return histograms;
+    }
+
+    private static int lengthBucket(int length) {
+        int b = 0;
+        while (b < LENGTHS.length && length > LENGTHS[b]) b++;
+        return b;
+    }
+
+    /**
+     * Publishes these stats on the platform MBean server as hmm:type=TaggerStats,name=name
+     * @param name
+     * @return this
+     * @throws Exception if the name is taken or invalid
+     */
+    public TaggerStats register(String name) throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("hmm:type=TaggerStats,name=" + name));
+        return this;
+    }
+
+    public void sentenceDecoded(int length, int oov, long expanded, long nanos) {
+        sentences.increment();
+        tokens.add(length);
+        oovTokens.add(oov);
+        statesExpanded.add(expanded);
+        decodeNanos.add(nanos);
+        decode.record(nanos);
+        decodeByLength[lengthBucket(length)].record(nanos);
+    }
+
+    public void modelLoaded(long nanos) {
+        lastModelLoadNanos = nanos;
+    }
+
+    public void trainingFinished(long trainedTokens, long nanos) {
+        lastTrainingNanos = nanos;
+    }
+
+    public long getSentences() {
+        return sentences.sum();
+    }
+
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    public long getOovTokens() {
+        return oovTokens.sum();
+    }
+
+    public double getOovRate() {
+        long n = tokens.sum();
+        return n == 0 ? 0 : (double) oovTokens.sum() / n;
+    }
+
+    public double getStatesExpandedPerToken() {
+        long n = tokens.sum();
+        return n == 0 ? 0 : (double) statesExpanded.sum() / n;
+    }
+
+    /**
+     * @return tokens per second of decoder time, summed over threads
+     */
+    public double getTokensPerSecond() {
+        long nanos = decodeNanos.sum();
+        return nanos == 0 ? 0 : tokens.sum() / (nanos / 1e9);
+    }
+
+    public double getDecodeP50Micros() {
+        return decode.percentile(0.50) / 1e3;
+    }
+
+    public double getDecodeP99Micros() {
+        return decode.percentile(0.99) / 1e3;
+    }
+
+    public double getDecodeP999Micros() {
+        return decode.percentile(0.999) / 1e3;
+    }
+
+    public String getDecodeMicrosByLength() {
+        StringBuilder lines = new StringBuilder();
+        for (int b = 0; b < decodeByLength.length; b++) {
+            LatencyHistogram histogram = decodeByLength[b];
+            String bucket = b < LENGTHS.length ? "<= " + LENGTHS[b] : "> " + LENGTHS[LENGTHS.length - 1];
+            lines.append(String.format("len %-6s %9d sentences  p50 %9.1fus  p99 %9.1fus%n", bucket,
+                    histogram.count(), histogram.percentile(0.50) / 1e3, histogram.percentile(0.99) / 1e3));
+        }
+        return lines.toString();
+    }
+
+    public double getLastModelLoadMillis() {
+        return lastModelLoadNanos / 1e6;
+    }
+
+    public double getLastTrainingMillis() {
+        return lastTrainingNanos / 1e6;
+    }
+
+    /**
+     * Starts counting from zero; recordings racing with the reset may land on either side
+     */
+    public void reset() {
+        sentences.reset();
+        tokens.reset();
+        oovTokens.reset();
+        statesExpanded.reset();
+        decodeNanos.reset();
+        decode = new LatencyHistogram();
+        decodeByLength = newHistograms();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d sentences, %d tokens, %.0f tokens/s, OOV %.2f%%, %.1f states/token, "
+                        + "p50 %.1fus, p99 %.1fus, p99.9 %.1fus, model load %.1fms, training %.1fms%n%s",
+                getSentences(), getTokens(), getTokensPerSecond(), 100 * getOovRate(), getStatesExpandedPerToken(),
+                getDecodeP50Micros(), getDecodeP99Micros(), getDecodeP999Micros(),
+                getLastModelLoadMillis(), getLastTrainingMillis(), getDecodeMicrosByLength());
+    }
+
+    /**
+     * Trains, saves and reloads the Brown model with stats attached, tags the test file,
+     * and compares decode throughput with and without the stats
+     */
+    public static void main(String[] args) throws Exception {
+        TaggerStats stats = new TaggerStats().register("brown");
+        StreamingTrainer trainer = new StreamingTrainer();
+        trainer.setMetrics(stats);
+        HMMModel trained = trainer.train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt", -100);
+        ModelIO.write(trained, "brown-stats.model");
+        HMMModel model = ModelIO.read("brown-stats.model", stats);
+        new java.io.File("brown-stats.model").delete();
+
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader("PS5/brown-test-sentences.txt"));
+        String line;
+        while ((line = reader.readLine()) != null) lines.add(line);
+        reader.close();
+
+        Tokenizer tokens = new Tokenizer();
+        int[] path = new int[256];
+        for (int pass = 0; pass < 10; pass++) {
+            for (boolean on : new boolean[]{false, true}) {
+                model.setMetrics(on ? stats : TaggerMetrics.NONE);
+                long start = System.nanoTime();
+                long count = 0;
+                for (String sentence : lines) {
+                    tokens.tokenize(sentence);
+                    if (tokens.count() > path.length) path = new int[tokens.count()];
+                    count += model.decoder().decode(tokens, path);
+                }
+                if (pass == 9) {
+                    System.out.printf("metrics %-3s %.0f tokens/s%n", on ? "on" : "off", count / ((System.nanoTime() - start) / 1e9));
+                }
+            }
+        }
+        System.out.print(stats);
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * JMX view of TaggerStats
+ */
+public interface TaggerStatsMBean {
+
+    long getSentences();
+
+    long getTokens();
+
+    long getOovTokens();
+
+    double getOovRate();
+
+    double getStatesExpandedPerToken();
+
+    double getTokensPerSecond();
+
+    double getDecodeP50Micros();
+
+    double getDecodeP99Micros();
+
+    double getDecodeP999Micros();
+
+    /**
+     * @return p50/p99 decode time per sentence length bucket, one line per bucket
+     */
+    String getDecodeMicrosByLength();
+
+    double getLastModelLoadMillis();
+
+    double getLastTrainingMillis();
+
+    void reset();
+}
@@ -0,0 +1,288 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Long running tagging daemon: loads a model once, then reads one sentence per line and writes
+ * one line of space separated tags per sentence, over stdin/stdout or a local socket.
+ *
+ * Requests are pipelined: the reader hands lines to the worker pool as soon as they arrive, up to
+ * BATCH lines per task when more are already buffered, and a writer thread sends the results back
+ * in input order as they complete. At most maxInFlight / BATCH batches are queued, so between
+ * maxInFlight / BATCH and maxInFlight lines depending on batch sizes, plus up to BATCH lines in the
+ * batch the reader is waiting to queue and BATCH in the one being written. When the client sends
+ * faster than the workers tag, the reader blocks and the client is held back by the socket or pipe buffer. Output is flushed whenever the writer catches
+ * up, so an interactive client gets each answer at once and a bulk client gets large writes.
+ */
+public class TaggingServer {
+
+    private static final CompletableFuture<String[]> END = CompletableFuture.completedFuture(null); // end of input marker
+    private static final int BATCH = 64; // most lines handed to a worker as one task
+
+    private final BatchTagger tagger;
+    private final ForkJoinPool pool;
+    private final int maxInFlight;
+
+    /**
+     * Server on the common fork-join pool with up to 64 batches of at most 64 lines queued per connection
+     * @param model
+     */
+    public TaggingServer(HMMModel model) {
+        this(model, ForkJoinPool.commonPool(), 4096);
+    }
+
+    /**
+     * @param model
+     * @param pool pool the lines are tagged on, shared by every connection
+     * @param maxInFlight lines read ahead of the output per connection when every batch is full;
+     *                    the queue holds maxInFlight / BATCH batches, at least one
+     */
+    public TaggingServer(HMMModel model, ForkJoinPool pool, int maxInFlight) {
+        this.tagger = new BatchTagger(model, pool);
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Tags every line of in and writes the tags to out, in order, until in is closed
+     * @param in one sentence per line, UTF-8
+     * @param out one tag line per sentence line, UTF-8
+     * @return number of lines tagged
+     * @throws IOException if reading fails, after the writer thread is stopped; a write failure
+     *                     stops reading and is rethrown
+     * @throws RuntimeException a failure while tagging a batch also stops reading and is rethrown,
+     *                          once the queued batches have been drained
+     */
+    public long serve(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        BlockingQueue<CompletableFuture<String[]>> pending = new ArrayBlockingQueue<>(Math.max(1, maxInFlight / BATCH));
+        AtomicReference<Exception> writeError = new AtomicReference<>(); // set by the writer thread
+
+        Thread writerThread = new Thread(() -> {
+            try {
+                CompletableFuture<String[]> next;
+                while ((next = pending.take()) != END) {
+                    for (String tags : next.join()) {
+                        writer.write(tags);
+                        writer.newLine();
+                    }
+                    if (pending.isEmpty()) writer.flush();
+                }
+                writer.flush();
+            } catch (IOException | RuntimeException e) {
+                // a failed write, or a batch that threw while being tagged (CompletionException)
+                writeError.set(e);
+                // keep draining so the reader never blocks on a full queue
+                try {
+                    while (pending.take() != END) { }
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "tagging-writer");
+        writerThread.start();
+
+        long lines = 0;
+        try {
+            String line;
+            while (writeError.get() == null && (line = reader.readLine()) != null) {
+                // take whatever else is already buffered, without waiting for more
+                String[] batch = new String[BATCH];
+                int size = 0;
+                batch[size++] = line;
+                while (size < BATCH && reader.ready() && (line = reader.readLine()) != null) batch[size++] = line;
+                int batchSize = size;
+                pending.put(CompletableFuture.supplyAsync(() -> tagBatch(batch, batchSize), pool));
+                lines += size;
+            }
+            pending.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // a failed read or an interrupt never sends END, so stop the writer before rethrowing
+            if (writerThread.isAlive()) {
+                writerThread.interrupt();
+                try {
+                    writerThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        Exception error = writeError.get();
+        if (error instanceof CompletionException && error.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) error.getCause();
+        }
+        if (error instanceof IOException) throw (IOException) error;
+        if (error != null) throw (RuntimeException) error;
+        return lines;
+    }
+
+    /**
+     * @param batch sentence lines
+     * @param size number of lines filled in
+     * @return tag line of every sentence
+     */
+    private String[] tagBatch(String[] batch, int size) {
+        String[] tagLines = new String[size];
+        for (int i = 0; i < size; i++) tagLines[i] = String.join(" ", tagger.tag(batch[i]));
+        return tagLines;
+    }
+
+    /**
+     * Accepts connections on the loopback interface and serves each on its own thread, forever
+     * @param port
+     * @throws IOException if the port cannot be bound
+     */
+    public void listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.err.println("Tagging on " + server.getLocalSocketAddress());
+        while (true) {
+            Socket socket = server.accept();
+            Thread connection = new Thread(() -> {
+                try {
+                    serve(socket.getInputStream(), socket.getOutputStream());
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error: connection " + socket.getRemoteSocketAddress() + ": " + e);
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // already gone
+                    }
+                }
+            }, "tagging-" + socket.getPort());
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    /**
+     * Serves input whose tagging throws partway through, with a queue much shorter than the input,
+     * and checks that serve() reports the failure instead of hanging. Then serves input whose read
+     * fails partway through and checks that no writer thread is left behind.
+     * @throws Exception
+     */
+    private static void failureCheck() throws Exception {
+        HMMModel model = new StreamingTrainer().train("PS5/simple-train-sentences.txt", "PS5/simple-train-tags.txt", -100);
+        model.setMetrics(new TaggerMetrics() {
+            public void sentenceDecoded(int tokens, int oovTokens, long statesExpanded, long nanos) {
+                if (tokens == 7) throw new IllegalStateException("sentence of 7 tokens");
+            }
+            public void modelLoaded(long nanos) { }
+            public void trainingFinished(long tokens, long nanos) { }
+        });
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100000; i++) input.append(i == 5000 ? "a b c d e f g" : "the dog saw a cat").append('\n');
+        byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+        TaggingServer server = new TaggingServer(model, ForkJoinPool.commonPool(), 256);
+        System.out.println(serveWithTimeout(server, new ByteArrayInputStream(bytes)));
+
+        // a connection reset after 1000 lines, before the line that fails to tag
+        InputStream reset = new InputStream() {
+            private final ByteArrayInputStream lines = new ByteArrayInputStream(bytes, 0, 18 * 1000);
+
+            public int read() throws IOException {
+                int b = lines.read();
+                if (b < 0) throw new IOException("connection reset");
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = lines.read(b, off, len);
+                if (n < 0) throw new IOException("connection reset");
+                return n;
+            }
+        };
+        System.out.println(serveWithTimeout(server, reset));
+        int writers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("tagging-writer") && thread.isAlive()) writers++;
+        }
+        System.out.println(writers + " writer threads left running");
+    }
+
+    /**
+     * @param server
+     * @param in input to serve, output is discarded
+     * @return what serve() returned or threw, or that it hung for 30 seconds
+     * @throws Exception
+     */
+    private static String serveWithTimeout(TaggingServer server, InputStream in) throws Exception {
+        CompletableFuture<String> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return "served " + server.serve(in, new ByteArrayOutputStream()) + " lines, no error";
+            } catch (Exception e) {
+                return "serve() threw " + e;
+            }
+        }, Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        }));
+        try {
+            return result.get(30, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return "serve() hung";
+        }
+    }
+
+    /**
+     * java TaggingServer [model file] [port]
+     * Loads the model file, or trains on the Brown corpus with its unknown word model if there is none,
+     * then serves stdin/stdout, or a loopback socket when a port is given. Progress goes to stderr.
+     * java TaggingServer --check-failure runs failureCheck() instead.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--check-failure")) {
+            failureCheck();
+            return;
+        }
+        TaggerStats stats = new TaggerStats();
+        HMMModel model;
+        if (args.length > 0 && new File(args[0]).exists()) {
+            model = ModelIO.read(args[0], stats);
+        } else {
+            HMMCounts counts = new StreamingTrainer().count("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+            model = counts.toModel(-100);
+            model.setUnknownWordModel(UnknownWordModel.train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt", counts, -100));
+            model.setMetrics(stats);
+        }
+        stats.register("server");
+        TaggingServer server = new TaggingServer(model);
+
+        if (args.length > 1) {
+            server.listen(Integer.parseInt(args[1]));
+        } else {
+            long startTime = System.nanoTime();
+            long lines = server.serve(System.in, System.out);
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.err.printf("Tagged %d lines in %.2fs (%.0f lines/sec)%n", lines, seconds, lines / seconds);
+            System.err.print(stats);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * Splits a line into whitespace separated tokens by recording their offsets, without creating
+ * a String per token or compiling a regex the way String.split does. Tokens can be looked up in
+ * a Vocabulary directly from the line, with case folding done during the lookup.
+ * A tokenizer reuses its offset arrays, so it is not thread-safe; forThread() gives each thread its own.
+ */
+public class Tokenizer {
+
+    private static final ThreadLocal<Tokenizer> TOKENIZERS = ThreadLocal.withInitial(Tokenizer::new);
+
+    private CharSequence text; // line being tokenized
+    private int[] starts;      // token -> first char
+    private int[] ends;        // token -> end
+    private int count;         // tokens in the current line
+
+    public Tokenizer() {
+        starts = new int[64];
+        ends = new int[64];
+    }
+
+    /**
+     * @return tokenizer owned by the calling thread
+     */
+    public static Tokenizer forThread() {
+        return TOKENIZERS.get();
+    }
+
+    /**
+     * Finds the tokens of a line; runs of spaces, tabs and line breaks separate tokens
+     * @param line
+     * @return number of tokens
+     */
+    public int tokenize(CharSequence line) {
+        text = line;
+        count = 0;
+        int length = line.length();
+        int c = 0;
+        while (c < length) {
+            while (c < length && isSeparator(line.charAt(c))) c++;
+            if (c == length) break;
+            int start = c;
+            while (c < length && !isSeparator(line.charAt(c))) c++;
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count++] = c;
+        }
+        return count;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return line being tokenized
+     */
+    public CharSequence text() {
+        return text;
+    }
+
+    public int start(int token) {
+        return starts[token];
+    }
+
+    public int end(int token) {
+        return ends[token];
+    }
+
+    /**
+     * Copies a token out into a String
+     * @param token
+     * @return the token text
+     */
+    public String token(int token) {
+        return text.subSequence(starts[token], ends[token]).toString();
+    }
+
+    /**
+     * @param token
+     * @param s
+     * @return true if the token is exactly s
+     */
+    public boolean matches(int token, String s) {
+        int start = starts[token];
+        if (ends[token] - start != s.length()) return false;
+        for (int c = 0; c < s.length(); c++) {
+            if (text.charAt(start + c) != s.charAt(c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Looks a token up in a vocabulary
+     * @param vocabulary
+     * @param token
+     * @param foldCase compare in lower case
+     * @return id, or -1 if the token is not in the vocabulary
+     */
+    public int lookup(WordIndex vocabulary, int token, boolean foldCase) {
+        return vocabulary.id(text, starts[token], ends[token], foldCase);
+    }
+
+    /**
+     * Interns a token into a vocabulary; only a token not yet in it is copied into a String
+     * @param vocabulary
+     * @param token
+     * @param foldCase intern in lower case
+     * @return id of the token
+     */
+    public int intern(Vocabulary vocabulary, int token, boolean foldCase) {
+        return vocabulary.add(text, starts[token], ends[token], foldCase);
+    }
+}
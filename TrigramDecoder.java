@@ -0,0 +1,323 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Viterbi decoder for a TrigramModel. Lattice states are (previous tag, tag) pairs; each column
+ * keeps only the pairs that were actually reached, in flat arrays that grow on demand and are
+ * reused between sentences. With the tag dictionary on, a known word only expands into the tags
+ * it was seen with, which keeps the number of live pairs close to the bigram state count.
+ * Unseen words are scored by the model's UnknownWordModel when one is attached.
+ * Not thread-safe: use one decoder per thread.
+ */
+public class TrigramDecoder {
+
+    private final TrigramModel trigram;
+    private final HMMModel model;
+    private final int numTags;
+    private final int[] emissionOffsets; // shared with the model, read only
+    private final int[] emissionTags;    // shared with the model, read only
+    private final int[] allTags;         // 0 .. numTags - 1
+    private final boolean tagDictionary; // restrict known words to the tags they were seen with
+    private final double beamThreshold;  // max distance from the best pair score, infinity for no limit
+
+    private int[][] pairs;               // [token][k] -> live pair, encoded prev * numTags + tag
+    private int[][] back;                // [token][k] -> index of the best live pair in the previous column
+    private double[] currScores;         // scores of the previous column's live pairs
+    private double[] nextScores;         // scores of this column's live pairs
+    private final int[] startPair;       // column before the first token: (start, start)
+    private final int[] stamps;          // pair -> stamp of the column it was last reached in
+    private final int[] index;           // pair -> its index in that column
+    private int stamp;
+    private final double[] known;        // emission scores of the current known word for every tag
+
+    /**
+     * @param trigram
+     * @param tagDictionary only consider tags a known word was seen with in training
+     * @param beamThreshold pairs further than this below the best score of their column are dropped,
+     *                      Double.POSITIVE_INFINITY for no limit
+     */
+    public TrigramDecoder(TrigramModel trigram, boolean tagDictionary, double beamThreshold) {
+        this.trigram = trigram;
+        this.model = trigram.model();
+        this.numTags = model.numTags();
+        this.emissionOffsets = model.emissionOffsetTable();
+        this.emissionTags = model.emissionTagTable();
+        this.tagDictionary = tagDictionary;
+        this.beamThreshold = beamThreshold;
+        this.allTags = new int[numTags];
+        for (int t = 0; t < numTags; t++) allTags[t] = t;
+
+        this.pairs = new int[16][numTags];
+        this.back = new int[16][numTags];
+        this.currScores = new double[numTags];
+        this.nextScores = new double[numTags];
+        this.startPair = new int[]{model.startTag() * numTags + model.startTag()};
+        this.stamps = new int[numTags * numTags];
+        this.index = new int[numTags * numTags];
+        this.known = new double[numTags];
+    }
+
+    /**
+     * Makes sure the lattice has a column for each of length tokens
+     * @param length
+     */
+    private void ensureColumns(int length) {
+        if (length <= pairs.length) return;
+        int capacity = Math.max(length, pairs.length * 2);
+        int[][] grownPairs = Arrays.copyOf(pairs, capacity);
+        int[][] grownBack = Arrays.copyOf(back, capacity);
+        for (int i = pairs.length; i < capacity; i++) {
+            grownPairs[i] = new int[numTags];
+            grownBack[i] = new int[numTags];
+        }
+        pairs = grownPairs;
+        back = grownBack;
+    }
+
+    /**
+     * Makes sure column i can hold size live pairs
+     * @param i
+     * @param size
+     */
+    private void ensureWidth(int i, int size) {
+        if (size > pairs[i].length) {
+            int capacity = Math.max(size, pairs[i].length * 2);
+            pairs[i] = Arrays.copyOf(pairs[i], capacity);
+            back[i] = Arrays.copyOf(back[i], capacity);
+        }
+        if (size > nextScores.length) {
+            int capacity = Math.max(size, nextScores.length * 2);
+            nextScores = Arrays.copyOf(nextScores, capacity);
+            currScores = Arrays.copyOf(currScores, capacity);
+        }
+    }
+
+    /**
+     * Tags the first length tokens of words
+     * @param words tokens, already normalized the way the model was trained
+     * @param length number of tokens to tag
+     * @param out receives the most likely tag id for every token
+     * @return number of tags written
+     */
+    public int decode(String[] words, int length, int[] out) {
+        ensureColumns(length);
+        UnknownWordModel unknownWords = model.unknownWordModel();
+        int[] currPairs = startPair;
+        int currCount = 1;
+        currScores[0] = 0.0;
+
+        for (int i = 0; i < length; i++) {
+            int word = model.wordId(words[i]);
+            double[] emission = known;
+            if (word < 0 && unknownWords != null) emission = unknownWords.emissions(words[i], 0, words[i].length());
+            else model.emissions(word, known);
+
+            int[] candidates = allTags;
+            int from = 0, to = numTags;
+            if (tagDictionary && word >= 0) {
+                candidates = emissionTags;
+                from = emissionOffsets[word];
+                to = emissionOffsets[word + 1];
+            }
+
+            int nextCount = expand(i, currPairs, currCount, emission, candidates, from, to);
+            if (nextCount == 0 && candidates != allTags) nextCount = expand(i, currPairs, currCount, emission, allTags, 0, numTags);
+            if (nextCount == 0) {
+                // no path reaches this token
+                Arrays.fill(out, 0, length, -1);
+                return length;
+            }
+            if (beamThreshold != Double.POSITIVE_INFINITY) nextCount = prune(i, nextCount);
+
+            currPairs = pairs[i];
+            currCount = nextCount;
+            double[] swap = currScores;
+            currScores = nextScores;
+            nextScores = swap;
+        }
+
+        // best final pair, then follow the back pointers through the columns
+        int best = 0;
+        for (int k = 1; k < currCount; k++) {
+            if (currScores[k] > currScores[best]) best = k;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            out[i] = pairs[i][best] % numTags;
+            best = back[i][best];
+        }
+        return length;
+    }
+
+    /**
+     * Tags a pre-tokenized sentence
+     * @param words tokens, already normalized the way the model was trained
+     * @param out receives the most likely tag id for every token, must hold words.length ids
+     * @return number of tags written
+     */
+    public int decode(String[] words, int[] out) {
+        return decode(words, words.length, out);
+    }
+
+    /**
+     * Scores column i from the live pairs of the previous column
+     * @return number of live pairs in column i
+     */
+    private int expand(int i, int[] currPairs, int currCount, double[] emission, int[] candidates, int from, int to) {
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        int nextCount = 0;
+        for (int k = 0; k < currCount; k++) {
+            int prev2 = currPairs[k] / numTags;
+            int prev = currPairs[k] % numTags;
+            double currScore = currScores[k];
+            for (int c = from; c < to; c++) {
+                int next = candidates[c];
+                double score = currScore + trigram.transition(prev2, prev, next) + emission[next];
+                if (score == Double.NEGATIVE_INFINITY) continue;
+                int pair = prev * numTags + next;
+                if (stamps[pair] != stamp) {
+                    stamps[pair] = stamp;
+                    ensureWidth(i, nextCount + 1);
+                    index[pair] = nextCount;
+                    pairs[i][nextCount] = pair;
+                    back[i][nextCount] = k;
+                    nextScores[nextCount++] = score;
+                } else if (score > nextScores[index[pair]]) {
+                    back[i][index[pair]] = k;
+                    nextScores[index[pair]] = score;
+                }
+            }
+        }
+        return nextCount;
+    }
+
+    /**
+     * Drops the pairs of column i that score more than beamThreshold below its best pair
+     * @return number of pairs kept
+     */
+    private int prune(int i, int count) {
+        double best = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < count; k++) best = Math.max(best, nextScores[k]);
+        int kept = 0;
+        for (int k = 0; k < count; k++) {
+            if (nextScores[k] < best - beamThreshold) continue;
+            pairs[i][kept] = pairs[i][k];
+            back[i][kept] = back[i][k];
+            nextScores[kept++] = nextScores[k];
+        }
+        return kept;
+    }
+
+    /**
+     * Accuracy and throughput of the trigram decoder against the bigram one on Brown, then both
+     * decoders on 5 held-out folds of the training sentences
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        HMMCounts counts = new StreamingTrainer().count("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt");
+        TrigramModel trigram = counts.toTrigramModel(-100);
+        HMMModel bigram = trigram.model();
+        bigram.setUnknownWordModel(UnknownWordModel.train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt", counts, -100));
+        double[] lambdas = trigram.lambdas();
+        System.out.println("Lambdas: unigram " + lambdas[0] + ", bigram " + lambdas[1] + ", trigram " + lambdas[2]);
+
+        ArrayList<String[]> sentences = new ArrayList<>();
+        ArrayList<String[]> tags = new ArrayList<>();
+        read("PS5/brown-test-sentences.txt", "PS5/brown-test-tags.txt", sentences, tags);
+
+        time(new ViterbiDecoder(bigram, 0, Double.POSITIVE_INFINITY, true), null, bigram, sentences, tags);
+        time(null, new TrigramDecoder(trigram, true, Double.POSITIVE_INFINITY), bigram, sentences, tags);
+
+        // the same comparison with every fifth training sentence held out, flat unseen penalty
+        ArrayList<String[]> trainSentences = new ArrayList<>();
+        ArrayList<String[]> trainTags = new ArrayList<>();
+        read("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt", trainSentences, trainTags);
+        int folds = 5;
+        for (int fold = 0; fold < folds; fold++) {
+            HMMCounts foldCounts = new HMMCounts();
+            for (int s = 0; s < trainSentences.size(); s++) {
+                if (s % folds != fold) foldCounts.addSentence(trainSentences.get(s), trainTags.get(s));
+            }
+            TrigramModel foldTrigram = foldCounts.toTrigramModel(-100);
+            HMMModel foldBigram = foldTrigram.model();
+            ViterbiDecoder foldExact = new ViterbiDecoder(foldBigram, 0, Double.POSITIVE_INFINITY, true);
+            TrigramDecoder foldSecond = new TrigramDecoder(foldTrigram, true, Double.POSITIVE_INFINITY);
+            int[] path = new int[1024], secondPath = new int[1024];
+            int total = 0, bigramCorrect = 0, trigramCorrect = 0;
+            for (int s = fold; s < trainSentences.size(); s += folds) {
+                String[] words = trainSentences.get(s);
+                if (words.length > path.length) {
+                    path = new int[words.length];
+                    secondPath = new int[words.length];
+                }
+                foldExact.decode(words, path);
+                foldSecond.decode(words, secondPath);
+                for (int i = 0; i < words.length; i++) {
+                    if (trainTags.get(s)[i].equals(foldBigram.tagName(path[i]))) bigramCorrect++;
+                    if (trainTags.get(s)[i].equals(foldBigram.tagName(secondPath[i]))) trigramCorrect++;
+                    total++;
+                }
+            }
+            System.out.printf("Held-out fold %d: bigram %.2f%%, trigram %.2f%%%n", fold,
+                    100.0 * bigramCorrect / total, 100.0 * trigramCorrect / total);
+        }
+    }
+
+    /**
+     * Tags the sentences 10 times with one of the decoders and prints the accuracy and throughput of the last pass
+     * @param exact bigram decoder, or null
+     * @param second trigram decoder, or null
+     * @param model model holding the tag table
+     * @param sentences
+     * @param tags gold tags of every sentence
+     */
+    private static void time(ViterbiDecoder exact, TrigramDecoder second, HMMModel model, ArrayList<String[]> sentences, ArrayList<String[]> tags) {
+        int[] path = new int[1024];
+        int correct = 0, total = 0;
+        double tokensPerSecond = 0;
+        for (int pass = 0; pass < 10; pass++) {
+            correct = 0;
+            total = 0;
+            long startTime = System.nanoTime();
+            for (int s = 0; s < sentences.size(); s++) {
+                String[] words = sentences.get(s);
+                if (words.length > path.length) path = new int[words.length];
+                if (exact != null) exact.decode(words, path);
+                else second.decode(words, path);
+                for (int i = 0; i < words.length; i++) {
+                    if (tags.get(s)[i].equals(model.tagName(path[i]))) correct++;
+                    total++;
+                }
+            }
+            tokensPerSecond = total / ((System.nanoTime() - startTime) / 1e9);
+        }
+        System.out.println((exact != null ? "Bigram" : "Trigram") + " + tag dictionary: "
+                + (100.0 * correct / total) + "% correct, " + Math.round(tokensPerSecond) + " tokens/sec");
+    }
+
+    /**
+     * Reads a sentence file and its tag file, one sentence per line, in lower case
+     * @param sentencesFile
+     * @param tagsFile
+     * @param sentences receives the split sentence lines
+     * @param tags receives the split tag lines
+     * @throws IOException
+     */
+    private static void read(String sentencesFile, String tagsFile, ArrayList<String[]> sentences, ArrayList<String[]> tags) throws IOException {
+        BufferedReader sentenceReader = new BufferedReader(new FileReader(sentencesFile));
+        BufferedReader tagReader = new BufferedReader(new FileReader(tagsFile));
+        String line, tagLine;
+        while ((line = sentenceReader.readLine()) != null && (tagLine = tagReader.readLine()) != null) {
+            sentences.add(line.toLowerCase().split(" "));
+            tags.add(tagLine.split(" "));
+        }
+        sentenceReader.close();
+        tagReader.close();
+    }
+}
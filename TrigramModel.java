@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+ * Second-order HMM: the next tag is conditioned on the previous two tags.
+ * Transition probabilities are smoothed by linear interpolation of trigram, bigram and unigram
+ * estimates, with the weights set by deleted interpolation (Brants 2000, TnT):
+ *   P(c | a, b) = l1 P(c) + l2 P(c | b) + l3 P(c | a, b)
+ * Emissions, the vocabulary and the tag table are shared with the first-order HMMModel.
+ * Only trigrams seen in training get their own entry; every other trigram scores the
+ * precomputed unigram + bigram part, so memory is tags^2 + seen trigrams.
+ * This is not a better tagger on the Brown test file: 95.92% against the bigram's 96.72%, both with
+ * the unknown word model. On held-out folds of the training text it wins by about 0.4 points
+ * (java TrigramDecoder), so the loss comes from the test text, not from the smoothing or the decoder.
+ */
+public class TrigramModel {
+
+    private static final long EMPTY = Long.MIN_VALUE; // free slot in the trigram table
+
+    private final HMMModel model;        // emissions, vocabulary and tag table
+    private final int numTags;
+    private final double[] backoff;      // [prev * numTags + next] -> log(l1 P(next) + l2 P(next | prev))
+    private final long[] trigramKeys;    // open addressing table of seen trigrams
+    private final double[] trigramScores; // matching interpolated log-probs
+    private final double[] lambdas;      // unigram, bigram, trigram weights
+
+    /**
+     * Builds the smoothed trigram tables from raw counts
+     * @param counts
+     * @param model first-order model normalized from the same counts
+     */
+    public TrigramModel(HMMCounts counts, HMMModel model) {
+        this.model = model;
+        this.numTags = model.numTags();
+        LongCounter trigrams = counts.trigramCounts();
+
+        // totals: per bigram context (a, b), per transition row b, and overall
+        LongCounter contexts = new LongCounter();
+        for (int slot = 0; slot < trigrams.capacity(); slot++) {
+            if (trigrams.used(slot)) contexts.add(trigrams.keyAt(slot) >>> 21, trigrams.countAt(slot));
+        }
+        long[] rowTotals = new long[numTags];
+        for (int prev = 0; prev < numTags; prev++) {
+            for (int next = 0; next < numTags; next++) rowTotals[prev] += counts.transitionCount(prev, next);
+        }
+        double tokens = counts.tokens();
+
+        // deleted interpolation: each trigram votes, with its count, for the estimate that
+        // predicts it best once that trigram is taken out of the counts
+        lambdas = new double[3];
+        for (int slot = 0; slot < trigrams.capacity(); slot++) {
+            if (!trigrams.used(slot)) continue;
+            long key = trigrams.keyAt(slot);
+            int prev = (int) (key >>> 21) & 0x1fffff, next = (int) key & 0x1fffff;
+            long count = trigrams.countAt(slot);
+            double unigram = ratio(counts.tagCount(next) - 1, tokens - 1);
+            double bigram = ratio(counts.transitionCount(prev, next) - 1, rowTotals[prev] - 1);
+            double trigram = ratio(count - 1, contexts.get(key >>> 21) - 1);
+            if (trigram >= bigram && trigram >= unigram) lambdas[2] += count;
+            else if (bigram >= unigram) lambdas[1] += count;
+            else lambdas[0] += count;
+        }
+        double lambdaTotal = lambdas[0] + lambdas[1] + lambdas[2];
+        for (int k = 0; k < 3; k++) lambdas[k] /= lambdaTotal;
+
+        backoff = new double[numTags * numTags];
+        for (int prev = 0; prev < numTags; prev++) {
+            for (int next = 0; next < numTags; next++) {
+                backoff[prev * numTags + next] = Math.log(lambdas[0] * ratio(counts.tagCount(next), tokens)
+                        + lambdas[1] * ratio(counts.transitionCount(prev, next), rowTotals[prev]));
+            }
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(trigrams.size(), 1) * 4);
+        trigramKeys = new long[capacity];
+        trigramScores = new double[capacity];
+        Arrays.fill(trigramKeys, EMPTY);
+        for (int slot = 0; slot < trigrams.capacity(); slot++) {
+            if (!trigrams.used(slot)) continue;
+            long key = trigrams.keyAt(slot);
+            int prev = (int) (key >>> 21) & 0x1fffff, next = (int) key & 0x1fffff;
+            double probability = lambdas[0] * ratio(counts.tagCount(next), tokens)
+                    + lambdas[1] * ratio(counts.transitionCount(prev, next), rowTotals[prev])
+                    + lambdas[2] * ratio(trigrams.countAt(slot), contexts.get(key >>> 21));
+            int i = slot(key);
+            trigramKeys[i] = key;
+            trigramScores[i] = Math.log(probability);
+        }
+    }
+
+    private static double ratio(double count, double total) {
+        return total > 0 ? count / total : 0;
+    }
+
+    private int slot(long key) {
+        int mask = trigramKeys.length - 1;
+        int i = (int) (LongCounter.mix(key) & mask);
+        while (trigramKeys[i] != EMPTY && trigramKeys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * @param prev2 tag two back
+     * @param prev previous tag
+     * @param next
+     * @return smoothed log P(next | prev2, prev)
+     */
+    public double transition(int prev2, int prev, int next) {
+        int i = slot(HMMCounts.trigramKey(prev2, prev, next));
+        return trigramKeys[i] == EMPTY ? backoff[prev * numTags + next] : trigramScores[i];
+    }
+
+    /**
+     * @return first-order model holding the emissions, vocabulary and tag table
+     */
+    public HMMModel model() {
+        return model;
+    }
+
+    /**
+     * @return interpolation weights: unigram, bigram, trigram
+     */
+    public double[] lambdas() {
+        return lambdas.clone();
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Emission scores for words that were never seen in training, from their suffix and shape
+ * instead of a flat penalty (the suffix model of the TnT tagger).
+ *
+ * Training collects tag counts of rare words (seen at most RARE times, the words that look most
+ * like unseen ones) by their last 1 to MAX_SUFFIX characters, in a trie walked from the end of the
+ * word, and by shape: capitalization, digits and hyphens. Each trie node's tag distribution is
+ * smoothed towards its parent's, so a long suffix seen a few times borrows from shorter ones.
+ *
+ * Scoring an unseen word is one walk over its last characters; the emission column of every
+ * (suffix node, shape) pair is computed once and shared, so words with the same ending and
+ * shape cost a single array lookup.
+ */
+public class UnknownWordModel {
+
+    public static final int MAX_SUFFIX = 5; // longest suffix used
+    public static final int RARE = 10;      // words seen at most this often train the model
+    static final int SHAPES = 12;           // 3 capitalizations x digit x hyphen
+
+    private final HMMCounts counts;         // word frequencies and tag ids, used while training
+    private final int numTags;
+    private final LongCounter edges;        // (node << 16 | char) -> child node + 1
+    private int[] parents;                  // node -> parent node, the root is 0
+    private long[] nodeCounts;              // [node * numTags + tag] -> rare words ending in the node's suffix
+    private final long[] shapeCounts;       // [shape * numTags + tag] -> rare words of the shape
+    private int nodes;                      // trie nodes so far
+
+    private double[] nodeScores;            // [node * numTags + tag] -> log P(tag | suffix) - log P(tag | rare)
+    private double[] shapeScores;           // [shape * numTags + tag] -> log P(tag | shape) - log P(tag) - log tokens
+    private AtomicReferenceArray<double[]> columns; // [node * SHAPES + shape] -> emission column, built on first use
+    private double floor;                   // lowest emission score, for tags no rare word ever had
+
+    /**
+     * Starts an empty model; add() the training sentences, then finish()
+     * @param counts finished counts of the same training data, for word frequencies and tag ids
+     */
+    public UnknownWordModel(HMMCounts counts) {
+        this.counts = counts;
+        this.numTags = counts.numTags();
+        this.edges = new LongCounter();
+        this.parents = new int[1024];
+        this.nodeCounts = new long[1024 * numTags];
+        this.shapeCounts = new long[SHAPES * numTags];
+        this.nodes = 1;
+    }
+
+    /**
+     * A finished model read back from a model file, see ModelIO
+     * @param numTags
+     * @param parents node -> parent node, the root is 0
+     * @param chars node -> lower case char on the edge from its parent
+     * @param nodeScores [node * numTags + tag] -> suffix score
+     * @param shapeScores [shape * numTags + tag] -> shape score
+     * @param floor lowest emission score
+     */
+    UnknownWordModel(int numTags, int[] parents, char[] chars, double[] nodeScores, double[] shapeScores, double floor) {
+        this.counts = null;
+        this.numTags = numTags;
+        this.edges = new LongCounter();
+        this.parents = parents;
+        this.shapeCounts = null;
+        this.nodes = parents.length;
+        for (int node = 1; node < nodes; node++) edges.add(((long) parents[node] << 16) | chars[node], node + 1);
+        this.nodeScores = nodeScores;
+        this.shapeScores = shapeScores;
+        this.floor = floor;
+        this.columns = new AtomicReferenceArray<>(nodes * SHAPES);
+    }
+
+    /**
+     * Trains on a pair of files
+     * @param sentencesFile sentences in their original case, for the capitalization feature
+     * @param tagsFile
+     * @param counts finished counts of the same files
+     * @param floor lowest emission score, e.g. the model's unseen penalty
+     * @return trained model
+     * @throws IOException
+     */
+    public static UnknownWordModel train(String sentencesFile, String tagsFile, HMMCounts counts, double floor) throws IOException {
+        UnknownWordModel model = new UnknownWordModel(counts);
+        Tokenizer words = new Tokenizer();
+        Tokenizer tags = new Tokenizer();
+        CorpusReader sentences = new CorpusReader(sentencesFile);
+        CorpusReader tagLines = new CorpusReader(tagsFile);
+        try {
+            int wordCount, tagCount;
+            while ((wordCount = sentences.next(words)) >= 0 && (tagCount = tagLines.next(tags)) >= 0) {
+                // mismatched pairs were already reported by the count
+                if (wordCount == tagCount) model.add(words, tags);
+            }
+        } finally {
+            sentences.close();
+            tagLines.close();
+        }
+        model.finish(floor);
+        return model;
+    }
+
+    /**
+     * Trains on a finished count table alone, without the text it was counted from. Every rare
+     * word in the table counts once per occurrence with each of its tags, as in train(files);
+     * the shape comes from the word as it was counted, so capitalization only shows if the
+     * counts kept case. Used to refresh the model after new counts were merged in.
+     * @param counts finished counts
+     * @param floor lowest emission score, e.g. the model's unseen penalty
+     * @return trained model
+     */
+    public static UnknownWordModel train(HMMCounts counts, double floor) {
+        UnknownWordModel model = new UnknownWordModel(counts);
+        for (int word = 0; word < counts.numWords(); word++) {
+            int[] tags = counts.emissionTags(word);
+            long[] tagCounts = counts.emissionCounts(word);
+            long frequency = 0;
+            for (long count : tagCounts) frequency += count;
+            if (frequency > RARE) continue;
+            String text = counts.word(word);
+            for (int k = 0; k < tags.length; k++) model.addRare(text, 0, text.length(), tags[k], tagCounts[k]);
+        }
+        model.finish(floor);
+        return model;
+    }
+
+    /**
+     * Counts the rare words of one tagged sentence
+     * @param words tokenizer holding the sentence line
+     * @param tags tokenizer holding the tag line
+     */
+    public void add(Tokenizer words, Tokenizer tags) {
+        for (int i = 0; i < words.count(); i++) {
+            long frequency = counts.wordCount(words, i);
+            int tag = counts.lookupTag(tags, i);
+            if (frequency == 0 || frequency > RARE || tag < 0) continue;
+            addRare(words.text(), words.start(i), words.end(i), tag, 1);
+        }
+    }
+
+    /**
+     * Adds occurrences of a rare word to its shape and to every suffix node on its path
+     * @param text
+     * @param start first char of the word
+     * @param end end of the word
+     * @param tag
+     * @param count occurrences
+     */
+    private void addRare(CharSequence text, int start, int end, int tag, long count) {
+        shapeCounts[shape(text, start, end) * numTags + tag] += count;
+        int node = 0;
+        nodeCounts[tag] += count;
+        for (int c = end - 1; c >= Math.max(start, end - MAX_SUFFIX); c--) {
+            long key = edgeKey(node, text.charAt(c));
+            int child = (int) edges.get(key) - 1;
+            if (child < 0) {
+                child = newNode(node);
+                edges.add(key, child + 1);
+            }
+            node = child;
+            nodeCounts[node * numTags + tag] += count;
+        }
+    }
+
+    private static long edgeKey(int node, char c) {
+        return ((long) node << 16) | Character.toLowerCase(c);
+    }
+
+    private int newNode(int parent) {
+        if (nodes == parents.length) {
+            parents = Arrays.copyOf(parents, nodes * 2);
+            nodeCounts = Arrays.copyOf(nodeCounts, nodes * 2 * numTags);
+        }
+        parents[nodes] = parent;
+        return nodes++;
+    }
+
+    /**
+     * @param text
+     * @param start
+     * @param end
+     * @return shape class: capitalization (lower, initial capital, all capitals) x has digit x has hyphen
+     */
+    static int shape(CharSequence text, int start, int end) {
+        if (start == end) return 0;
+        boolean initialUpper = Character.isUpperCase(text.charAt(start));
+        boolean allUpper = end - start > 1;
+        boolean digit = false, hyphen = false;
+        for (int c = start; c < end; c++) {
+            char ch = text.charAt(c);
+            if (Character.isLowerCase(ch)) allUpper = false;
+            if (ch >= '0' && ch <= '9') digit = true;
+            if (ch == '-') hyphen = true;
+        }
+        int capitals = !initialUpper ? 0 : allUpper ? 2 : 1;
+        return capitals * 4 + (digit ? 2 : 0) + (hyphen ? 1 : 0);
+    }
+
+    /**
+     * Turns the counts into smoothed scores; the model cannot be added to afterwards
+     * @param floor lowest emission score, e.g. the model's unseen penalty
+     */
+    public void finish(double floor) {
+        this.floor = floor;
+        long rareTotal = 0;
+        for (int t = 0; t < numTags; t++) rareTotal += nodeCounts[t];
+
+        // smoothing weight: standard deviation of the rare word tag distribution
+        double[] rare = new double[numTags];
+        double mean = 1.0 / numTags, variance = 0;
+        for (int t = 0; t < numTags; t++) {
+            rare[t] = rareTotal == 0 ? 0 : nodeCounts[t] / (double) rareTotal;
+            variance += (rare[t] - mean) * (rare[t] - mean);
+        }
+        double theta = Math.sqrt(variance / Math.max(1, numTags - 1));
+
+        // P(tag | suffix), interpolated with the parent; parents are created before their children
+        double[] probabilities = new double[nodes * numTags];
+        System.arraycopy(rare, 0, probabilities, 0, numTags);
+        for (int node = 1; node < nodes; node++) {
+            long total = 0;
+            for (int t = 0; t < numTags; t++) total += nodeCounts[node * numTags + t];
+            int parent = parents[node];
+            for (int t = 0; t < numTags; t++) {
+                double p = nodeCounts[node * numTags + t] / (double) total;
+                probabilities[node * numTags + t] = (p + theta * probabilities[parent * numTags + t]) / (1 + theta);
+            }
+        }
+        nodeScores = new double[nodes * numTags];
+        for (int i = 0; i < nodeScores.length; i++) {
+            double p = rare[i % numTags];
+            nodeScores[i] = p == 0 ? Double.NEGATIVE_INFINITY : Math.log(probabilities[i] / p);
+        }
+
+        // P(tag | shape) with the rare word distribution as a prior worth one word
+        shapeScores = new double[SHAPES * numTags];
+        double logTokens = Math.log(Math.max(1, counts.tokens()));
+        for (int shape = 0; shape < SHAPES; shape++) {
+            long total = 0;
+            for (int t = 0; t < numTags; t++) total += shapeCounts[shape * numTags + t];
+            for (int t = 0; t < numTags; t++) {
+                double p = (shapeCounts[shape * numTags + t] + rare[t]) / (total + 1.0);
+                double prior = counts.tagCount(t) / (double) Math.max(1, counts.tokens());
+                shapeScores[shape * numTags + t] = prior == 0 ? Double.NEGATIVE_INFINITY : Math.log(p / prior) - logTokens;
+            }
+        }
+        columns = new AtomicReferenceArray<>(nodes * SHAPES);
+    }
+
+    /**
+     * Emission scores of an unseen word for every tag
+     * @param text
+     * @param start first char of the word
+     * @param end end of the word
+     * @return column of numTags scores, shared, must not be modified
+     */
+    public double[] emissions(CharSequence text, int start, int end) {
+        int node = 0;
+        for (int c = end - 1; c >= Math.max(start, end - MAX_SUFFIX); c--) {
+            int child = (int) edges.get(edgeKey(node, text.charAt(c))) - 1;
+            if (child < 0) break;
+            node = child;
+        }
+        int shape = shape(text, start, end);
+        double[] column = columns.get(node * SHAPES + shape);
+        if (column == null) {
+            // racing threads build identical columns, either may win
+            column = new double[numTags];
+            for (int t = 0; t < numTags; t++) {
+                column[t] = Math.max(floor, nodeScores[node * numTags + t] + shapeScores[shape * numTags + t]);
+            }
+            columns.set(node * SHAPES + shape, column);
+        }
+        return column;
+    }
+
+    /**
+     * @return node -> parent node of the suffix trie, the root is 0
+     */
+    int[] parentTable() {
+        return Arrays.copyOf(parents, nodes);
+    }
+
+    /**
+     * @return node -> lower case char on the edge from its parent, 0 for the root
+     */
+    char[] charTable() {
+        char[] chars = new char[nodes];
+        for (int slot = 0; slot < edges.capacity(); slot++) {
+            if (edges.used(slot)) chars[(int) edges.countAt(slot) - 1] = (char) edges.keyAt(slot);
+        }
+        return chars;
+    }
+
+    /**
+     * @return [node * numTags + tag] -> suffix score; must not be modified
+     */
+    double[] nodeScoreTable() {
+        return nodeScores;
+    }
+
+    /**
+     * @return [shape * numTags + tag] -> shape score; must not be modified
+     */
+    double[] shapeScoreTable() {
+        return shapeScores;
+    }
+
+    double floor() {
+        return floor;
+    }
+
+    /**
+     * @return number of tags in every emission column
+     */
+    public int numTags() {
+        return numTags;
+    }
+
+    /**
+     * @return number of suffix trie nodes, the root included
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * Accuracy on known and unseen words, and speed, with and without an unknown word model
+     * @param model
+     * @param sentencesFile
+     * @param tagsFile
+     * @throws IOException
+     */
+    private static void report(HMMModel model, String name, String sentencesFile, String tagsFile) throws IOException {
+        Tokenizer words = new Tokenizer();
+        Tokenizer tags = new Tokenizer();
+        int[] path = new int[256];
+        long known = 0, knownCorrect = 0, unseen = 0, unseenCorrect = 0, nanos = 0;
+        BufferedReader sentences = new BufferedReader(new FileReader(sentencesFile));
+        BufferedReader tagLines = new BufferedReader(new FileReader(tagsFile));
+        String line, tagLine;
+        while ((line = sentences.readLine()) != null && (tagLine = tagLines.readLine()) != null) {
+            int length = words.tokenize(line);
+            if (length != tags.tokenize(tagLine)) continue;
+            if (length > path.length) path = new int[length];
+            long startTime = System.nanoTime();
+            model.decoder().decode(words, path);
+            nanos += System.nanoTime() - startTime;
+            for (int i = 0; i < length; i++) {
+                boolean correct = tags.matches(i, String.valueOf(model.tagName(path[i])));
+                if (model.wordId(words, i) >= 0) {
+                    known++;
+                    if (correct) knownCorrect++;
+                } else {
+                    unseen++;
+                    if (correct) unseenCorrect++;
+                }
+            }
+        }
+        sentences.close();
+        tagLines.close();
+        System.out.printf("%-22s known %.2f%%  unseen %.2f%% (%d words)  overall %.2f%%  %.0f tokens/sec%n", name,
+                100.0 * knownCorrect / known, 100.0 * unseenCorrect / unseen, unseen,
+                100.0 * (knownCorrect + unseenCorrect) / (known + unseen), (known + unseen) / (nanos / 1e9));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] sets = {"simple", "brown"};
+        for (String set : sets) {
+            String trainSentences = "PS5/" + set + "-train-sentences.txt", trainTags = "PS5/" + set + "-train-tags.txt";
+            HMMCounts counts = new StreamingTrainer().count(trainSentences, trainTags);
+            HMMModel model = counts.toModel(-100);
+            UnknownWordModel unknownWords = train(trainSentences, trainTags, counts, -100);
+            for (int pass = 0; pass < 3; pass++) {
+                model.setUnknownWordModel(null);
+                report(model, set + " penalty -100", "PS5/" + set + "-test-sentences.txt", "PS5/" + set + "-test-tags.txt");
+                model.setUnknownWordModel(unknownWords);
+                report(model, set + " suffix/shape", "PS5/" + set + "-test-sentences.txt", "PS5/" + set + "-test-tags.txt");
+            }
+            System.out.println(set + " suffix trie nodes: " + unknownWords.size());
+        }
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Viterbi decoder over an HMMModel that reuses its lattice between sentences.
+ * The back pointer lattice grows on demand to the longest sentence seen, so once warmed up
+ * tagging a sentence allocates nothing. Not thread-safe: use one decoder per thread
+ * (HMMModel.decoder() hands out a per-thread instance).
+ *
+ * By default the search is exact. For large tagsets it can be pruned with a beam (keep only the
+ * best beamWidth states, and/or those within beamThreshold of the best, in each column) and a
+ * tag dictionary (a known word is only tagged with tags it was seen with in training).
+ *
+ * Columns are normally scored by walking only the live states of the previous column. With a
+ * MaxPlusKernel each next tag is instead scored with one max-plus pass over a column of the
+ * transposed transition matrix, which the Vector API kernel runs several tags at a time; that
+ * wins for tagsets of hundreds of tags, where nearly all states stay alive.
+ */
+public class ViterbiDecoder {
+
+    private final HMMModel model;
+    private final int numTags;
+    private final double[] transitions;  // shared with the model, read only
+    private final int[] successorOffsets; // shared with the model, read only
+    private final int[] successorTags;    // shared with the model, read only
+    private final double[] successorScores; // shared with the model, read only
+    private final int[] emissionOffsets; // shared with the model, read only
+    private final int[] emissionTags;    // shared with the model, read only
+    private final int[] allTags;         // 0 .. numTags - 1, candidates when there is no dictionary entry
+    private final int beamWidth;         // states kept per column, 0 for no limit
+    private final double beamThreshold;  // max distance from the best score, infinity for no limit
+    private final boolean tagDictionary; // restrict known words to the tags they were seen with
+
+    private final double[][] scores;     // two rolling score columns [current/next][tag]
+    private int[][] backPointers;        // [token][tag] -> best previous tag
+    private final double[] emissionScratch; // emission column of a known word, filled in place
+    private double[] emission;           // emission scores of the current word for every tag
+    private final int[][] live;          // two rolling lists of the states alive in a column
+    private final int[] heap;            // scratch min-heap for the beam
+    private int[] wordIds;               // word ids of the sentence being decoded
+    private final MaxPlusKernel kernel;  // scores whole columns at once, null to walk the live states
+    private final double[] transposed;   // [next * numTags + prev] transitions when there is a kernel
+    private long edges;                  // lattice edges scored in the current sentence
+
+    /**
+     * Exact decoder
+     * @param model
+     */
+    public ViterbiDecoder(HMMModel model) {
+        this(model, 0, Double.POSITIVE_INFINITY, false);
+    }
+
+    /**
+     * Exact decoder that scores each column with a max-plus kernel
+     * @param model
+     * @param kernel e.g. MaxPlusKernel.preferred()
+     */
+    public ViterbiDecoder(HMMModel model, MaxPlusKernel kernel) {
+        this(model, 0, Double.POSITIVE_INFINITY, false, kernel);
+    }
+
+    /**
+     * Pruned decoder
+     * @param model
+     * @param beamWidth states kept per column, 0 for no limit
+     * @param beamThreshold states further than this below the best score of their column are dropped,
+     *                      Double.POSITIVE_INFINITY for no limit
+     * @param tagDictionary only consider tags a known word was seen with in training
+     */
+    public ViterbiDecoder(HMMModel model, int beamWidth, double beamThreshold, boolean tagDictionary) {
+        this(model, beamWidth, beamThreshold, tagDictionary, null);
+    }
+
+    /**
+     * Pruned decoder with a max-plus kernel
+     * @param model
+     * @param beamWidth states kept per column, 0 for no limit
+     * @param beamThreshold states further than this below the best score of their column are dropped,
+     *                      Double.POSITIVE_INFINITY for no limit
+     * @param tagDictionary only consider tags a known word was seen with in training
+     * @param kernel scores every predecessor of a tag in one pass; null to walk the live states instead
+     */
+    public ViterbiDecoder(HMMModel model, int beamWidth, double beamThreshold, boolean tagDictionary, MaxPlusKernel kernel) {
+        this.model = model;
+        this.kernel = kernel;
+        this.transposed = kernel == null ? null : model.transposedTransitionTable();
+        this.numTags = model.numTags();
+        this.transitions = model.transitionTable();
+        this.successorOffsets = model.successorOffsetTable();
+        this.successorTags = model.successorTagTable();
+        this.successorScores = model.successorScoreTable();
+        this.emissionOffsets = model.emissionOffsetTable();
+        this.emissionTags = model.emissionTagTable();
+        this.beamWidth = beamWidth;
+        this.beamThreshold = beamThreshold;
+        this.tagDictionary = tagDictionary;
+        this.allTags = new int[numTags];
+        for (int t = 0; t < numTags; t++) allTags[t] = t;
+        this.scores = new double[2][numTags];
+        this.backPointers = new int[16][numTags];
+        this.emissionScratch = new double[numTags];
+        this.live = new int[2][numTags];
+        this.heap = new int[numTags];
+        this.wordIds = new int[16];
+    }
+
+    HMMModel model() {
+        return model;
+    }
+
+    /**
+     * Makes sure the lattice has a column for each of length tokens
+     * @param length
+     */
+    private void ensureCapacity(int length) {
+        if (length <= backPointers.length) return;
+        int capacity = Math.max(length, backPointers.length * 2);
+        int[][] grown = Arrays.copyOf(backPointers, capacity);
+        for (int i = backPointers.length; i < capacity; i++) grown[i] = new int[numTags];
+        backPointers = grown;
+    }
+
+    /**
+     * Tags a pre-tokenized sentence
+     * @param words tokens, already normalized the way the model was trained
+     * @param out receives the most likely tag id for every token, must hold words.length ids
+     * @return number of tags written
+     */
+    public int decode(String[] words, int[] out) {
+        return decode(words, words.length, out);
+    }
+
+    /**
+     * Tags the first length tokens of words
+     * @param words tokens, already normalized the way the model was trained
+     * @param length number of tokens to tag
+     * @param out receives the most likely tag id for every token
+     * @return number of tags written
+     */
+    public int decode(String[] words, int length, int[] out) {
+        if (length > wordIds.length) wordIds = new int[Math.max(length, wordIds.length * 2)];
+        for (int i = 0; i < length; i++) wordIds[i] = model.wordId(words[i]);
+        return decode(words, null, wordIds, length, out);
+    }
+
+    /**
+     * Tags a tokenized line, looking each token up in lower case straight from the line
+     * @param tokens tokenizer holding the line
+     * @param out receives the most likely tag id for every token
+     * @return number of tags written
+     */
+    public int decode(Tokenizer tokens, int[] out) {
+        int length = tokens.count();
+        if (length > wordIds.length) wordIds = new int[Math.max(length, wordIds.length * 2)];
+        for (int i = 0; i < length; i++) wordIds[i] = model.wordId(tokens, i);
+        return decode(null, tokens, wordIds, length, out);
+    }
+
+    /**
+     * Tags a sentence that has already been looked up in the model's vocabulary
+     * @param wordIds word id of every token, -1 for an unseen word
+     * @param length number of tokens to tag
+     * @param out receives the most likely tag id for every token
+     * @return number of tags written
+     */
+    public int decode(int[] wordIds, int length, int[] out) {
+        return decode(null, null, wordIds, length, out);
+    }
+
+    /**
+     * Viterbi over the lattice
+     * @param words tokens, used to score unseen words; may be null
+     * @param tokens tokenizer holding the line, used to score unseen words; may be null
+     * @param wordIds word id of every token
+     * @param length number of tokens to tag
+     * @param out receives the most likely tag id for every token
+     * @return number of tags written
+     */
+    private int decode(String[] words, Tokenizer tokens, int[] wordIds, int length, int[] out) {
+        TaggerMetrics metrics = model.metrics();
+        UnknownWordModel unknownWords = model.unknownWordModel();
+        long startTime = metrics == TaggerMetrics.NONE ? 0 : System.nanoTime();
+        int oov = 0;
+        edges = 0;
+
+        ensureCapacity(length);
+        double[] currScores = scores[0];
+        double[] nextScores = scores[1];
+        int[] currLive = live[0];
+        int[] nextLive = live[1];
+
+        Arrays.fill(currScores, Double.NEGATIVE_INFINITY);
+        currScores[model.startTag()] = 0.0;
+        currLive[0] = model.startTag();
+        int currCount = 1;
+
+        for (int i = 0; i < length; i++) {
+            int word = wordIds[i];
+            if (word < 0) oov++;
+            if (word < 0 && unknownWords != null && words != null) {
+                emission = unknownWords.emissions(words[i], 0, words[i].length());
+            } else if (word < 0 && unknownWords != null && tokens != null) {
+                emission = unknownWords.emissions(tokens.text(), tokens.start(i), tokens.end(i));
+            } else {
+                model.emissions(word, emissionScratch);
+                emission = emissionScratch;
+            }
+
+            // candidate next tags: the word's dictionary entry, or every tag
+            int[] candidates = allTags;
+            int from = 0, to = numTags;
+            if (tagDictionary && word >= 0) {
+                candidates = emissionTags;
+                from = emissionOffsets[word];
+                to = emissionOffsets[word + 1];
+            }
+
+            int nextCount = expand(currScores, currLive, currCount, nextScores, nextLive, backPointers[i], candidates, from, to);
+            if (nextCount == 0 && candidates != allTags) {
+                // the dictionary tags cannot follow any surviving state, try every tag
+                nextCount = expand(currScores, currLive, currCount, nextScores, nextLive, backPointers[i], allTags, 0, numTags);
+            }
+            if (nextCount == 0) {
+                // no path reaches this token
+                Arrays.fill(out, 0, length, -1);
+                if (metrics != TaggerMetrics.NONE) metrics.sentenceDecoded(length, oov, edges, System.nanoTime() - startTime);
+                return length;
+            }
+
+            double[] swapScores = currScores;
+            currScores = nextScores;
+            nextScores = swapScores;
+            int[] swapLive = currLive;
+            currLive = nextLive;
+            nextLive = swapLive;
+            currCount = nextCount;
+        }
+
+        // find the best final state and follow the back pointers from it
+        int best = -1;
+        double maxScore = Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < numTags; t++) {
+            if (currScores[t] > maxScore) {
+                maxScore = currScores[t];
+                best = t;
+            }
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            out[i] = best;
+            if (best >= 0) best = backPointers[i][best];
+        }
+        if (metrics != TaggerMetrics.NONE) metrics.sentenceDecoded(length, oov, edges, System.nanoTime() - startTime);
+        return length;
+    }
+
+    /**
+     * Scores one column of the lattice from the previous one, then applies the beam
+     * @param currScores scores of the previous column
+     * @param currLive states alive in the previous column
+     * @param currCount number of live states
+     * @param nextScores receives the scores of this column
+     * @param nextLive receives the states alive in this column
+     * @param back receives the back pointers of this column
+     * @param candidates tags this token may take
+     * @param from first candidate index
+     * @param to end of the candidate range
+     * @return number of states alive in this column
+     */
+    private int expand(double[] currScores, int[] currLive, int currCount, double[] nextScores, int[] nextLive,
+                       int[] back, int[] candidates, int from, int to) {
+        Arrays.fill(nextScores, Double.NEGATIVE_INFINITY);
+        if (kernel != null) {
+            // dead states of the previous column are -infinity, so a dense pass skips them by itself
+            edges += (long) (to - from) * numTags;
+            for (int c = from; c < to; c++) {
+                int next = candidates[c];
+                int prev = kernel.argMaxPlus(currScores, transposed, next * numTags, numTags);
+                if (prev < 0) continue;
+                nextScores[next] = currScores[prev] + transposed[next * numTags + prev] + emission[next];
+                back[next] = prev;
+            }
+            return prune(nextScores, candidates, from, to, nextLive);
+        }
+        if (candidates == allTags) {
+            // every tag is a candidate: follow only the transitions that exist
+            for (int l = 0; l < currCount; l++) {
+                int prev = currLive[l];
+                double currScore = currScores[prev];
+                int end = successorOffsets[prev + 1];
+                edges += end - successorOffsets[prev];
+                for (int k = successorOffsets[prev]; k < end; k++) {
+                    int next = successorTags[k];
+                    double nextScore = currScore + successorScores[k] + emission[next];
+                    if (nextScore > nextScores[next]) {
+                        nextScores[next] = nextScore;
+                        back[next] = prev;
+                    }
+                }
+            }
+            return prune(nextScores, candidates, from, to, nextLive);
+        }
+        edges += (long) currCount * (to - from);
+        for (int l = 0; l < currCount; l++) {
+            int prev = currLive[l];
+            double currScore = currScores[prev];
+            int row = prev * numTags;
+            for (int c = from; c < to; c++) {
+                int next = candidates[c];
+                double nextScore = currScore + transitions[row + next] + emission[next];
+                if (nextScore > nextScores[next]) {
+                    nextScores[next] = nextScore;
+                    back[next] = prev;
+                }
+            }
+        }
+        return prune(nextScores, candidates, from, to, nextLive);
+    }
+
+    /**
+     * Collects the states of a finished column that survive the beam
+     * @param columnScores scores of the column, pruned states are reset to -infinity
+     * @param candidates tags that may have been scored
+     * @param from first candidate index
+     * @param to end of the candidate range
+     * @param survivors receives the surviving tag ids
+     * @return number of survivors
+     */
+    private int prune(double[] columnScores, int[] candidates, int from, int to, int[] survivors) {
+        double best = Double.NEGATIVE_INFINITY;
+        for (int c = from; c < to; c++) best = Math.max(best, columnScores[candidates[c]]);
+        double floor = best - beamThreshold;
+
+        int count = 0;
+        for (int c = from; c < to; c++) {
+            int tag = candidates[c];
+            double score = columnScores[tag];
+            if (score == Double.NEGATIVE_INFINITY) continue;
+            if (score < floor) {
+                columnScores[tag] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+            if (beamWidth <= 0) {
+                survivors[count++] = tag;
+            } else if (count < beamWidth) {
+                heap[count] = tag;
+                siftUp(columnScores, count++);
+            } else if (score > columnScores[heap[0]]) {
+                columnScores[heap[0]] = Double.NEGATIVE_INFINITY;
+                heap[0] = tag;
+                siftDown(columnScores, count);
+            } else {
+                columnScores[tag] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        if (beamWidth > 0) System.arraycopy(heap, 0, survivors, 0, count);
+        return count;
+    }
+
+    // min-heap on score over heap[0 .. size), so heap[0] is the weakest state in the beam
+    private void siftUp(double[] columnScores, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (columnScores[heap[parent]] <= columnScores[heap[i]]) return;
+            int swap = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = swap;
+            i = parent;
+        }
+    }
+
+    private void siftDown(double[] columnScores, int size) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1, right = left + 1;
+            if (left < size && columnScores[heap[left]] < columnScores[heap[smallest]]) smallest = left;
+            if (right < size && columnScores[heap[right]] < columnScores[heap[smallest]]) smallest = right;
+            if (smallest == i) return;
+            int swap = heap[smallest];
+            heap[smallest] = heap[i];
+            heap[i] = swap;
+            i = smallest;
+        }
+    }
+
+    /**
+     * Accuracy and speed of a decoder over a test file
+     * @param decoder
+     * @param name label for the printout
+     * @param sentences test sentences, lower cased and split
+     * @param tags matching tags
+     */
+    private static void report(ViterbiDecoder decoder, String name, ArrayList<String[]> sentences, ArrayList<String[]> tags) {
+        int[] path = new int[1024];
+        double tokensPerSecond = 0;
+        int correct = 0, total = 0;
+        for (int pass = 0; pass < 5; pass++) {
+            correct = 0;
+            total = 0;
+            long startTime = System.nanoTime();
+            for (int s = 0; s < sentences.size(); s++) {
+                String[] words = sentences.get(s);
+                if (words.length > path.length) path = new int[words.length];
+                decoder.decode(words, path);
+                for (int i = 0; i < words.length; i++) {
+                    if (tags.get(s)[i].equals(decoder.model.tagName(path[i]))) correct++;
+                    total++;
+                }
+            }
+            tokensPerSecond = total / ((System.nanoTime() - startTime) / 1e9);
+        }
+        System.out.println(name + ": " + (100.0 * correct / total) + "% correct, " + Math.round(tokensPerSecond) + " tokens/sec");
+    }
+
+    /**
+     * Beam and tag dictionary modes against the exact search on Brown
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        HMMModel model = new StreamingTrainer().train("PS5/brown-train-sentences.txt", "PS5/brown-train-tags.txt", -100);
+
+        ArrayList<String[]> sentences = new ArrayList<>();
+        ArrayList<String[]> tags = new ArrayList<>();
+        BufferedReader btest = new BufferedReader(new FileReader("PS5/brown-test-sentences.txt"));
+        BufferedReader btesttags = new BufferedReader(new FileReader("PS5/brown-test-tags.txt"));
+        String line, tagLine;
+        while ((line = btest.readLine()) != null && (tagLine = btesttags.readLine()) != null) {
+            sentences.add(line.toLowerCase().split(" "));
+            tags.add(tagLine.split(" "));
+        }
+        btest.close();
+        btesttags.close();
+
+        report(new ViterbiDecoder(model), "Exact", sentences, tags);
+        report(new ViterbiDecoder(model, 0, Double.POSITIVE_INFINITY, true), "Tag dictionary", sentences, tags);
+        for (int width : new int[]{1, 2, 4, 8}) {
+            report(new ViterbiDecoder(model, width, Double.POSITIVE_INFINITY, false), "Beam " + width, sentences, tags);
+            report(new ViterbiDecoder(model, width, Double.POSITIVE_INFINITY, true), "Beam " + width + " + tag dictionary", sentences, tags);
+        }
+        for (double threshold : new double[]{5, 10, 20}) {
+            report(new ViterbiDecoder(model, 0, threshold, true), "Threshold " + threshold + " + tag dictionary", sentences, tags);
+        }
+    }
+}
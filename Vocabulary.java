@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Interns strings (words or tags) to dense int ids, in order of first appearance.
+ * Besides whole strings, a vocabulary can look up a slice of any CharSequence, optionally folding
+ * it to lower case as it goes, so tokens never have to be copied into their own String to be found.
+ */
+public class Vocabulary implements WordIndex {
+
+    private int[] slots;                        // open addressing table of ids, -1 for a free slot
+    private final ArrayList<String> strings;    // id -> string
+    private int[] hashes;                       // id -> String.hashCode of the string
+
+    public Vocabulary() {
+        slots = new int[16];
+        Arrays.fill(slots, -1);
+        strings = new ArrayList<>();
+        hashes = new int[16];
+    }
+
+    /**
+     * @return an independent copy with the same ids
+     */
+    public Vocabulary copy() {
+        Vocabulary copy = new Vocabulary();
+        for (String s : strings) copy.add(s);
+        return copy;
+    }
+
+    /**
+     * Returns the id of s, adding it if it has not been seen before
+     * @param s
+     * @return id of s
+     */
+    public int add(String s) {
+        int id = id(s);
+        return id >= 0 ? id : insert(s, s.hashCode());
+    }
+
+    /**
+     * Returns the id of a slice of text, adding it if it has not been seen before
+     * @param text
+     * @param start first char of the slice
+     * @param end end of the slice
+     * @param foldCase look up (and store) the slice in lower case
+     * @return id of the slice
+     */
+    public int add(CharSequence text, int start, int end, boolean foldCase) {
+        int id = id(text, start, end, foldCase);
+        if (id >= 0) return id;
+        StringBuilder folded = new StringBuilder(end - start);
+        for (int c = start; c < end; c++) folded.append(fold(text.charAt(c), foldCase));
+        String s = folded.toString();
+        return insert(s, s.hashCode());
+    }
+
+    /**
+     * Looks up the id of s
+     * @param s
+     * @return id of s, or -1 if s is not in the vocabulary
+     */
+    public int id(String s) {
+        int hash = s.hashCode();
+        int mask = slots.length - 1;
+        for (int i = spread(hash) & mask; slots[i] >= 0; i = (i + 1) & mask) {
+            if (hashes[slots[i]] == hash && strings.get(slots[i]).equals(s)) return slots[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up the id of a slice of text without copying it
+     * @param text
+     * @param start first char of the slice
+     * @param end end of the slice
+     * @param foldCase compare the slice in lower case (the vocabulary must hold lower case strings)
+     * @return id of the slice, or -1 if it is not in the vocabulary
+     */
+    public int id(CharSequence text, int start, int end, boolean foldCase) {
+        // same polynomial as String.hashCode, so slices hash like the strings they spell
+        int hash = 0;
+        for (int c = start; c < end; c++) hash = 31 * hash + fold(text.charAt(c), foldCase);
+
+        int mask = slots.length - 1;
+        for (int i = spread(hash) & mask; slots[i] >= 0; i = (i + 1) & mask) {
+            int id = slots[i];
+            if (hashes[id] == hash && matches(strings.get(id), text, start, end, foldCase)) return id;
+        }
+        return -1;
+    }
+
+    // String.hashCode is weak in the low bits, mix the high ones in before masking
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static char fold(char c, boolean foldCase) {
+        return foldCase ? Character.toLowerCase(c) : c;
+    }
+
+    private static boolean matches(String s, CharSequence text, int start, int end, boolean foldCase) {
+        if (s.length() != end - start) return false;
+        for (int c = start; c < end; c++) {
+            if (s.charAt(c - start) != fold(text.charAt(c), foldCase)) return false;
+        }
+        return true;
+    }
+
+    private int insert(String s, int hash) {
+        int id = strings.size();
+        strings.add(s);
+        if (id >= hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        hashes[id] = hash;
+        if (strings.size() * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            Arrays.fill(slots, -1);
+            for (int j = 0; j < strings.size(); j++) place(j);
+        } else {
+            place(id);
+        }
+        return id;
+    }
+
+    private void place(int id) {
+        int mask = slots.length - 1;
+        int i = spread(hashes[id]) & mask;
+        while (slots[i] >= 0) i = (i + 1) & mask;
+        slots[i] = id;
+    }
+
+    /**
+     * @param id
+     * @return string with the given id
+     */
+    public String get(int id) {
+        return strings.get(id);
+    }
+
+    public int size() {
+        return strings.size();
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Read side of a word dictionary: words to dense ids and back.
+ * Vocabulary grows during training; FrozenVocabulary is the compact form built after it.
+ */
+public interface WordIndex {
+
+    /**
+     * @param s
+     * @return id of s, or -1 if s is not in the dictionary
+     */
+    int id(String s);
+
+    /**
+     * Looks up a slice of text without copying it
+     * @param text
+     * @param start first char of the slice
+     * @param end end of the slice
+     * @param foldCase compare the slice in lower case
+     * @return id of the slice, or -1 if it is not in the dictionary
+     */
+    int id(CharSequence text, int start, int end, boolean foldCase);
+
+    /**
+     * @param id
+     * @return word with the given id
+     */
+    String get(int id);
+
+    int size();
+}
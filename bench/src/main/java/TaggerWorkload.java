@@ -0,0 +1,94 @@
+import bench.Workload;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Workload over the taggers in the repository root, for the JMH benchmarks in the bench package
+ */
+public class TaggerWorkload implements Workload {
+
+    private String trainSentences, trainTags, testSentences;
+    private String modelFile;
+    private POS loaded;                  // training data read, for OTMaps
+    private POS pos;
+    private markov hmm;
+    private ViterbiDecoder decoder;
+    private ArrayList<String[]> sentences; // test sentences of the current length
+    private ArrayList<String> lines;     // the same sentences as POS.viterbi input lines
+    private int[] path;
+
+    public void setUp(String data, String set) throws Exception {
+        trainSentences = data + set + "-train-sentences.txt";
+        trainTags = data + set + "-train-tags.txt";
+        testSentences = data + set + "-test-sentences.txt";
+
+        loaded = new POS();
+        loaded.loadTrainingData(trainSentences, trainTags);
+        pos = new POS();
+        pos.train(trainSentences, trainTags);
+        hmm = new markov();
+        hmm.train(trainSentences, trainTags);
+        HMMModel model = new StreamingTrainer().train(trainSentences, trainTags, -100);
+        modelFile = File.createTempFile(set + "-bench", ".model").getPath();
+        ModelIO.write(model, modelFile);
+        decoder = model.decoder();
+    }
+
+    public void bucket(int length) throws IOException {
+        sentences = Benchmarks.bucket(testSentences, length);
+        if (sentences.isEmpty()) {
+            // a test file shorter than length: one sentence of its words, repeated
+            ArrayList<String[]> words = Benchmarks.bucket(testSentences, 1);
+            String[] sentence = new String[length];
+            for (int i = 0; i < length; i++) sentence[i] = words.get(i % words.size())[0];
+            sentences.add(sentence);
+        }
+        lines = new ArrayList<>();
+        for (String[] sentence : sentences) lines.add("# " + String.join(" ", sentence));
+        path = new int[length];
+    }
+
+    public void tearDown() {
+        new File(modelFile).delete();
+    }
+
+    public Object loadTrainingData() throws Exception {
+        POS reader = new POS();
+        reader.loadTrainingData(trainSentences, trainTags);
+        return reader;
+    }
+
+    public Object otMaps() {
+        loaded.OTMaps();
+        return loaded.getModel();
+    }
+
+    public Object streamingCount() throws IOException {
+        return new StreamingTrainer().count(trainSentences, trainTags);
+    }
+
+    public Object markovTrain() throws IOException {
+        markov trained = new markov();
+        trained.train(trainSentences, trainTags);
+        return trained;
+    }
+
+    public Object modelRead() throws IOException {
+        return ModelIO.read(modelFile);
+    }
+
+    public Object posViterbi(int i) {
+        return pos.viterbi(lines.get(i % lines.size()));
+    }
+
+    public Object markovPredict(int i) {
+        return hmm.predict(sentences.get(i % sentences.size()));
+    }
+
+    public Object viterbiDecoder(int i) {
+        decoder.decode(sentences.get(i % sentences.size()), path);
+        return path;
+    }
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding one sentence with POS.viterbi, markov.predict and ViterbiDecoder, by data set and
+ * sentence length; each call takes the next test sentence of that length
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DecodingBenchmarks {
+
+    @Param({"simple", "brown"})
+    public String set;
+
+    @Param({"5", "20", "60", "200"})
+    public int length;
+
+    @Param({"../"})
+    public String data; // directory holding the data files, relative to where the benchmarks run
+
+    private Workload workload;
+    private int next; // call number, picks the sentence
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workload.create();
+        workload.setUp(data, set);
+        workload.bucket(length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object posViterbi() {
+        return workload.posViterbi(next++);
+    }
+
+    @Benchmark
+    public Object markovPredict() {
+        return workload.markovPredict(next++);
+    }
+
+    @Benchmark
+    public Object viterbiDecoder() {
+        return workload.viterbiDecoder(next++);
+    }
+}
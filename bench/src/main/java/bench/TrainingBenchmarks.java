@@ -0,0 +1,74 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Training and file loading: POS.loadTrainingData, POS.OTMaps, StreamingTrainer.count,
+ * markov.train and ModelIO.read, on each data set
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TrainingBenchmarks {
+
+    @Param({"simple", "brown"})
+    public String set;
+
+    @Param({"../"})
+    public String data; // directory holding the data files, relative to where the benchmarks run
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workload.create();
+        workload.setUp(data, set);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public Object loadTrainingData() throws Exception {
+        return workload.loadTrainingData();
+    }
+
+    @Benchmark
+    public Object otMaps() {
+        return workload.otMaps();
+    }
+
+    @Benchmark
+    public Object streamingCount() throws Exception {
+        return workload.streamingCount();
+    }
+
+    @Benchmark
+    public Object markovTrain() throws Exception {
+        return workload.markovTrain();
+    }
+
+    @Benchmark
+    public Object modelRead() throws Exception {
+        return workload.modelRead();
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.io.IOException;
+
+/**
+ * The taggers as the benchmarks see them. JMH only accepts benchmark classes in a named package,
+ * and a named package cannot refer to the taggers in the unnamed one, so TaggerWorkload, in the
+ * unnamed package, implements this interface and the benchmarks load it by name.
+ */
+public interface Workload {
+
+    /**
+     * @return a new TaggerWorkload
+     * @throws ReflectiveOperationException if it was not compiled into the benchmarks
+     */
+    static Workload create() throws ReflectiveOperationException {
+        return (Workload) Class.forName("TaggerWorkload").getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Trains every tagger on one data set and writes its model file
+     * @param data directory holding the data files
+     * @param set "simple" or "brown"
+     * @throws Exception
+     */
+    void setUp(String data, String set) throws Exception;
+
+    /**
+     * Cuts the test sentences into sentences of exactly length tokens
+     * @param length
+     * @throws IOException
+     */
+    void bucket(int length) throws IOException;
+
+    /**
+     * Deletes the model file
+     */
+    void tearDown();
+
+    Object loadTrainingData() throws Exception;
+
+    Object otMaps();
+
+    Object streamingCount() throws IOException;
+
+    Object markovTrain() throws IOException;
+
+    Object modelRead() throws IOException;
+
+    /**
+     * @param i call number, picks the sentence
+     * @return tags
+     */
+    Object posViterbi(int i);
+
+    Object markovPredict(int i);
+
+    Object viterbiDecoder(int i);
+}
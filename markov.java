@@ -8,6 +8,7 @@ public class markov {
     Map<String, Map<String, Double>> transitionMatrix; // matrix that keeps track of how often certain POS tags transition to others
     Map<String, Map<String, Double>> observationMatrix; // matrix that keeps track of what words from the training file can be each tag and how often they appear as that tag
     Double unseenPenalty = -100.0; // score for the state of a word when it has not been observed as that POS tag
+    HMMModel model; // compiled form of the two matrices that predict runs on
 
     public markov() { // constructor
         transitionMatrix = new HashMap<>(); // initialize transitionMatrix
@@ -40,6 +41,7 @@ public class markov {
         }
         logProbality(tagTotals, transitionMatrix); // convert transitionMatrix to use log probabilities
         logProbality(wordTotals, observationMatrix); // convert observationMatrix to use log probabilities
+        model = HMMModel.compile(transitionMatrix, observationMatrix, "#", unseenPenalty); // intern tags and words into array tables
     }
 
     private void updateMatrix(Map<String, Integer> wordTotals, String word, String tag, Map<String, Map<String, Double>> observationMatrix) { // add new word with tag to matrix
@@ -79,16 +81,20 @@ public class markov {
 
             String[] words = lineText.split(" ");
             String[] testTags = lineTag.split(" ");
-            ArrayList<String> predTags = predict(words);
-            for (int i = 0; i < words.length-1; i++) { // loops through all the words
-
-                if (predTags.get(i).equals(testTags[i])) {
-                    correct += 1; // if tag equals tag from tag file increment correct
-                } else { // else increment wrong
-                    wrong += 1;
+            if (words.length != testTags.length) { // skip lines whose tags do not line up with the words
+                System.out.println("Warning: " + words.length + " words but " + testTags.length + " tags, skipped.");
+            } else {
+                ArrayList<String> predTags = predict(words);
+                int k = 0; // index into predTags, which has no entries for periods
+                for (int i = 0; i < words.length; i++) { // loops through all the words
+                    String predicted = words[i].equals(".") ? "." : predTags.get(k++); // periods are always tagged "."
+                    if (predicted.equals(testTags[i])) {
+                        correct += 1; // if tag equals tag from tag file increment correct
+                    } else { // else increment wrong
+                        wrong += 1;
+                    }
                 }
             }
-            correct += 1; // account for period
 
             // read next lines of files
             lineText = textFileR.readLine();
@@ -97,61 +103,57 @@ public class markov {
         System.out.println(correct + " correct vs " + wrong + " wrong"); // print number of correct tags and number of wrong tags
     }
 
-    public ArrayList<String> predict(String[] words) { // takes a list of words and returns list of tags associated with the words
+    private static int keepWords(String[] words, String[] kept) { // copies the words that get a tag into kept, in lower case, and returns how many
+        int length = 0;
+        for (String word: words) {
+            if (!word.equals(".")) kept[length++] = word.toLowerCase(); // periods are skipped, they are always tagged "."
+        }
+        return length;
+    }
 
-        ArrayList<Map<String, String>> backPath = new ArrayList<>(); // create backpath to keep track of paths to current states
-        Map<String, Double> toCheck = new HashMap<>(); // new map of tags to check as keys and the current scores as values
-        toCheck.put("#", 0.0); // add start to toCheck
-
-        for (int i = 0; i < words.length; i++) { // this loop goes through the words
-            if (words[i].equals(".")) continue;
-            Map<String, Double> nextCheck = new HashMap<>();
-            String word = words[i];
-            word = word.toLowerCase();
-            HashMap<String, String> back = new HashMap<>();
-            for (String checkTag: toCheck.keySet()) { // this loop goes through the tags in toCheck
-
-                if (!transitionMatrix.containsKey(checkTag)) continue; // if transition matrix does not contain tag
-                for (String nextTag: transitionMatrix.get(checkTag).keySet()) { // go through tags that can be next tag from transition matrix
-
-                    double score = transitionMatrix.get(checkTag).get(nextTag) + toCheck.get(checkTag); // score is transition score of next tag plus current score
-                    if (!observationMatrix.get(nextTag).containsKey(word)) { // if word has not been observed then observed score is unseenPenalty
-                        score += unseenPenalty;
-                    } else { // else score equals observed score of word plus score
-                        score += observationMatrix.get(nextTag).get(word);
-                    }
-                    if (!nextCheck.containsKey(nextTag) || score > nextCheck.get(nextTag)) { // if tag isn't already in nextCheck or score is greater than current score of that tag
-                        back.put(nextTag, checkTag); // put next tag with current tag in back map
-                        nextCheck.put(nextTag, score); // update nextCheck
-                    }
-                }
-            }
-            backPath.add(back); // add back map to backPath
-            toCheck = nextCheck; // update toCheck
+    public ArrayList<String> predict(String[] words) { // takes a list of words and returns list of tags associated with the words
+        String[] kept = new String[words.length];
+        int length = keepWords(words, kept);
+        int[] tagIds = new int[length];
+        model.decoder().decode(kept, length, tagIds); // run viterbi over the compiled tables
 
+        ArrayList<String> path = new ArrayList<>(tagIds.length); // convert tag ids back to tag names
+        for (int tagId: tagIds) path.add(model.tagName(tagId));
+        return path; // return path of tags
+    }
 
+    public ArrayList<ArrayList<String>> predictNBest(String[] words, int k) { // the k most likely lists of tags, best first
+        String[] kept = new String[words.length];
+        int length = keepWords(words, kept);
+        int[][] tagIds = new int[k][length];
+        int found = model.latticeDecoder().nBest(kept, length, k, tagIds, new double[k]); // list viterbi over the compiled tables
+
+        ArrayList<ArrayList<String>> paths = new ArrayList<>(found); // convert tag ids back to tag names
+        for (int p = 0; p < found; p++) {
+            ArrayList<String> path = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) path.add(model.tagName(tagIds[p][i]));
+            paths.add(path);
         }
-        // finds highest score once we reach the last word
-        double maxScore = 0;
-        String maxTag = "";
-        for (String tag: toCheck.keySet()) {
-            if (maxScore == 0  || toCheck.get(tag) > maxScore) {
-                maxScore = toCheck.get(tag);
-                maxTag = tag;
-            }
-        }
-
-        // uses backpath to create list of tags associated with given list of words
-        ArrayList<String> path = new ArrayList<>();
-        path.add(maxTag);
-        for (int i = backPath.size() - 1; i > 0; i--) {
+        return paths;
+    }
 
-            Map<String, String> back = backPath.get(i);
-            path.add(0, back.get(maxTag));
-            maxTag = back.get(maxTag);
+    public ArrayList<Map<String, Double>> predictPosteriors(String[] words, double minPosterior) { // probability of each tag for each word, given the whole sentence
+        String[] kept = new String[words.length];
+        int length = keepWords(words, kept);
+        int numTags = model.numTags();
+        double[] posteriors = new double[length * numTags];
+        model.latticeDecoder().posteriors(kept, length, posteriors); // forward-backward over the compiled tables
+
+        ArrayList<Map<String, Double>> tagProbabilities = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            Map<String, Double> tags = new HashMap<>();
+            for (int t = 0; t < numTags; t++) {
+                double p = posteriors[i * numTags + t];
+                if (p > 0 && p >= minPosterior) tags.put(model.tagName(t), p); // leave out unlikely tags
+            }
+            tagProbabilities.add(tags);
         }
-        // for (String word: words) System.out.print(word + " ");
-        return path; // return path of tags
+        return tagProbabilities;
     }
 
     public void predictConsole() { // allows someone to write words into console and receive their POS predictions
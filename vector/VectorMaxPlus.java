@@ -0,0 +1,136 @@
+import java.util.Arrays;
+import java.util.Random;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * MaxPlusKernel on the Vector API: adds and compares a whole register of predecessors at a time,
+ * keeping the best sum and its index per lane, then reduces across lanes. Ties go to the smallest
+ * index, exactly as in MaxPlusKernel.SCALAR, so both kernels decode the same paths.
+ *
+ * Lives in its own source root so the rest of the tree builds with plain javac. It needs the
+ * incubator module to compile and run, as an optional step after the main build:
+ *   javac *.java
+ *   javac --add-modules jdk.incubator.vector -cp . -d . vector/VectorMaxPlus.java
+ *   java --add-modules jdk.incubator.vector ...
+ * -d . puts VectorMaxPlus.class next to the other classes, where MaxPlusKernel.preferred() looks
+ * for it. When it was not compiled there, or the module is missing at run time, preferred()
+ * prints a warning once and falls back to the scalar loop.
+ */
+public class VectorMaxPlus implements MaxPlusKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final double[] IOTA = new double[SPECIES.length()]; // 0, 1, .. lanes - 1
+
+    static {
+        for (int i = 0; i < IOTA.length; i++) IOTA[i] = i;
+    }
+
+    public int argMaxPlus(double[] a, double[] b, int bOffset, int n) {
+        int lanes = SPECIES.length();
+        int bound = SPECIES.loopBound(n);
+        double best = Double.NEGATIVE_INFINITY;
+        int arg = -1;
+
+        if (bound > 0) {
+            // indices are carried as doubles, exact far beyond any tagset size
+            DoubleVector bestSums = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+            DoubleVector bestIndices = DoubleVector.broadcast(SPECIES, -1);
+            DoubleVector indices = DoubleVector.fromArray(SPECIES, IOTA, 0);
+            DoubleVector step = DoubleVector.broadcast(SPECIES, lanes);
+            for (int i = 0; i < bound; i += lanes) {
+                DoubleVector sums = DoubleVector.fromArray(SPECIES, a, i).add(DoubleVector.fromArray(SPECIES, b, bOffset + i));
+                VectorMask<Double> better = sums.compare(VectorOperators.GT, bestSums);
+                bestSums = bestSums.blend(sums, better);
+                bestIndices = bestIndices.blend(indices, better);
+                indices = indices.add(step);
+            }
+            best = bestSums.reduceLanes(VectorOperators.MAX);
+            if (best > Double.NEGATIVE_INFINITY) {
+                VectorMask<Double> atBest = bestSums.compare(VectorOperators.EQ, best);
+                arg = (int) bestIndices.reduceLanes(VectorOperators.MIN, atBest);
+            }
+        }
+        for (int i = bound; i < n; i++) {
+            double sum = a[i] + b[bOffset + i];
+            if (sum > best) {
+                best = sum;
+                arg = i;
+            }
+        }
+        return arg;
+    }
+
+    /**
+     * Random model with numTags tags and a dense transition matrix
+     * @param numTags
+     * @param numWords
+     * @param random
+     * @return model
+     */
+    private static HMMModel randomModel(int numTags, int numWords, Random random) {
+        Vocabulary tags = new Vocabulary();
+        tags.add(HMMCounts.START);
+        for (int t = 1; t < numTags; t++) tags.add("T" + t);
+        Vocabulary words = new Vocabulary();
+        for (int w = 0; w < numWords; w++) words.add("w" + w);
+        double[] transitions = new double[numTags * numTags];
+        for (int i = 0; i < transitions.length; i++) transitions[i] = Math.log(random.nextDouble());
+        int perWord = 4;
+        int[] offsets = new int[numWords + 1];
+        int[] emissionTags = new int[numWords * perWord];
+        double[] emissionScores = new double[numWords * perWord];
+        for (int w = 0; w < numWords; w++) {
+            offsets[w + 1] = offsets[w] + perWord;
+            for (int k = 0; k < perWord; k++) {
+                emissionTags[offsets[w] + k] = 1 + (w * perWord + k) % (numTags - 1);
+                emissionScores[offsets[w] + k] = Math.log(random.nextDouble());
+            }
+        }
+        return new HMMModel(tags, words, 0, transitions, offsets, emissionTags, emissionScores, -100);
+    }
+
+    /**
+     * Decodes the same sentences with the live-list, scalar kernel and vector kernel decoders
+     * @param name
+     * @param model
+     * @param sentences
+     */
+    private static void compare(String name, HMMModel model, String[][] sentences) {
+        ViterbiDecoder[] decoders = {new ViterbiDecoder(model), new ViterbiDecoder(model, MaxPlusKernel.SCALAR),
+                new ViterbiDecoder(model, MaxPlusKernel.preferred())};
+        String[] names = {"live lists", "scalar kernel", "vector kernel"};
+        int[][] paths = new int[decoders.length][];
+        for (int d = 0; d < decoders.length; d++) {
+            int[] path = new int[sentences[0].length];
+            paths[d] = new int[sentences.length * path.length];
+            double tokensPerSecond = 0;
+            for (int pass = 0; pass < 5; pass++) {
+                long startTime = System.nanoTime();
+                for (int s = 0; s < sentences.length; s++) {
+                    decoders[d].decode(sentences[s], path);
+                    System.arraycopy(path, 0, paths[d], s * path.length, path.length);
+                }
+                tokensPerSecond = paths[d].length / ((System.nanoTime() - startTime) / 1e9);
+            }
+            System.out.printf("%-8s %-14s %10.0f tokens/sec  same path as live lists: %b%n", name, names[d],
+                    tokensPerSecond, Arrays.equals(paths[d], paths[0]));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Preferred kernel: " + MaxPlusKernel.preferred().getClass().getName()
+                + ", " + SPECIES.length() + " lanes");
+        Random random = new Random(42);
+        for (int numTags : new int[]{13, 64, 256, 512}) {
+            HMMModel model = randomModel(numTags, 5000, random);
+            String[][] sentences = new String[Math.max(50, 2000000 / (numTags * numTags))][20];
+            for (String[] sentence : sentences) {
+                for (int i = 0; i < sentence.length; i++) sentence[i] = "w" + random.nextInt(5500); // some unseen
+            }
+            compare(numTags + " tags", model, sentences);
+        }
+    }
+}